@@ -0,0 +1,58 @@
+package jettchen.lox;
+
+// The states a Binary node goes through when node specialization is on.
+// Each node keeps its own state in Expr.Binary.state: it starts out
+// uninitialized, records the operand types it first sees, and from then
+// on the interpreter runs it for those types only. A node that has only
+// seen numbers joins the unboxed path, so its parent reads it as a double
+// the way it reads a node the Resolver marked unboxed; those start out in
+// NUMBERS or COMPARISON. A node whose guess fails goes generic for good,
+// so a site that sees mixed types settles instead of flip-flopping.
+final class BinaryNode {
+    static final int UNINITIALIZED = 0;
+    // Arithmetic that has only seen numbers, and so gives a number.
+    static final int NUMBERS = 1;
+    // A comparison that has only seen numbers.
+    static final int COMPARISON = 2;
+    // A + that has only seen two strings.
+    static final int STRINGS = 3;
+    static final int GENERIC = 4;
+
+    // Thrown by a NUMBERS node that was asked for a double but found an
+    // operand that isn't a number. It carries the node's actual value to
+    // its parent, which has already evaluated the node's operands and so
+    // must not evaluate it again.
+    static final class Unexpected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+
+        Unexpected(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    private BinaryNode() {}
+
+    static int specialize(TokenType operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        switch (operator) {
+            case PLUS:
+                if (numbers) return NUMBERS;
+                if (left instanceof String && right instanceof String) return STRINGS;
+                return GENERIC;
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return numbers ? NUMBERS : GENERIC;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return numbers ? COMPARISON : GENERIC;
+        }
+        // Equality works on any operands, so there is nothing to guess.
+        return GENERIC;
+    }
+}
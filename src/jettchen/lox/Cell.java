@@ -0,0 +1,11 @@
+package jettchen.lox;
+
+// A mutable box for a variable that is looked up once and then accessed
+// directly, such as a global cached at its use sites.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
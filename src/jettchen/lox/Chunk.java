@@ -0,0 +1,39 @@
+package jettchen.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+class Chunk {
+    byte[] code = new byte[16];
+    int[] lines = new int[16];
+    int count = 0;
+    final List<Object> constants = new ArrayList<>();
+    // Which constants are names, operands of the instructions that look
+    // something up by name, as opposed to string literals.
+    final BitSet names = new BitSet();
+    Object[] constantTable;
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    // Drops the spare capacity once the compiler is done with this chunk.
+    void seal() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constantTable = constants.toArray();
+    }
+}
@@ -0,0 +1,367 @@
+package jettchen.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a JVM class file writer for the JIT. It emits version 49
+// class files, which the JVM still verifies by type inference, so the
+// writer never has to compute stack map frames.
+class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 1;
+    static final int ICONST_0 = 3;
+    static final int BIPUSH = 16;
+    static final int SIPUSH = 17;
+    static final int LDC_W = 19;
+    static final int LDC2_W = 20;
+    static final int DLOAD = 24;
+    static final int ALOAD = 25;
+    static final int AALOAD = 50;
+    static final int DSTORE = 57;
+    static final int ASTORE = 58;
+    static final int AASTORE = 83;
+    static final int POP = 87;
+    static final int POP2 = 88;
+    static final int DUP = 89;
+    static final int DUP2 = 92;
+    static final int DUP2_X1 = 93;
+    static final int DUP2_X2 = 94;
+    static final int DADD = 99;
+    static final int DSUB = 103;
+    static final int DMUL = 107;
+    static final int DDIV = 111;
+    static final int DNEG = 119;
+    static final int IXOR = 130;
+    static final int IFEQ = 153;
+    static final int IFNE = 154;
+    static final int GOTO = 167;
+    static final int ARETURN = 176;
+    static final int RETURN = 177;
+    static final int GETSTATIC = 178;
+    static final int PUTSTATIC = 179;
+    static final int INVOKEVIRTUAL = 182;
+    static final int INVOKESPECIAL = 183;
+    static final int INVOKESTATIC = 184;
+    static final int ANEWARRAY = 189;
+    static final int CHECKCAST = 192;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(name);
+        });
+    }
+
+    int string(String value) {
+        int utf = utf8(value);
+        return constant("S" + value, () -> {
+            pool.writeByte(CONSTANT_STRING);
+            pool.writeShort(utf);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        });
+    }
+
+    // Doubles take two constant pool entries.
+    int number(double value) {
+        int index = constant("D" + Double.doubleToRawLongBits(value), () -> {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeDouble(value);
+        });
+        if (index == poolCount - 1) poolCount++;
+        return index;
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int klass = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+        });
+        return constant(tag + owner + "." + name + ":" + descriptor, () -> {
+            pool.writeByte(tag);
+            pool.writeShort(klass);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    private interface Entry {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, Entry entry) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            entry.write();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    void method(int access, String name, String descriptor, Code code) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + code.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(code.length);
+            out.write(code.bytes, 0, code.length);
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes(int access, String name, String superName) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A method body. Callers pass the stack effect of each instruction so
+    // the code can track max_stack as it goes.
+    static class Code {
+        private final ClassFile file;
+        byte[] bytes = new byte[256];
+        int length = 0;
+        int stack = 0;
+        int maxStack = 0;
+        int maxLocals = 0;
+
+        Code(ClassFile file) {
+            this.file = file;
+        }
+
+        void op(int opcode, int stackEffect) {
+            u1(opcode);
+            adjust(stackEffect);
+        }
+
+        void op1(int opcode, int operand, int stackEffect) {
+            u1(opcode);
+            u1(operand);
+            adjust(stackEffect);
+        }
+
+        void op2(int opcode, int operand, int stackEffect) {
+            u1(opcode);
+            u2(operand);
+            adjust(stackEffect);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op1(BIPUSH, value & 0xff, 1);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op2(SIPUSH, value & 0xffff, 1);
+            } else {
+                op2(LDC_W, file.integer(value), 1);
+            }
+        }
+
+        void pushDouble(double value) {
+            op2(LDC2_W, file.number(value), 2);
+        }
+
+        void load(int local) {
+            local(ALOAD, local, 1);
+            adjust(1);
+        }
+
+        void store(int local) {
+            local(ASTORE, local, 1);
+            adjust(-1);
+        }
+
+        // Doubles take two locals and two stack slots.
+        void loadDouble(int local) {
+            local(DLOAD, local, 2);
+            adjust(2);
+        }
+
+        void storeDouble(int local) {
+            local(DSTORE, local, 2);
+            adjust(-2);
+        }
+
+        private void local(int opcode, int local, int size) {
+            if (local > 255) throw new JitCompiler.Unsupported("too many locals");
+            if (local + size > maxLocals) maxLocals = local + size;
+            u1(opcode);
+            u1(local);
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int effect = returnSize(descriptor) - argumentSize(descriptor);
+            if (opcode != INVOKESTATIC) effect--;
+            op2(opcode, file.methodRef(owner, name, descriptor), effect);
+        }
+
+        void getStatic(String owner, String name, String descriptor) {
+            op2(GETSTATIC, file.fieldRef(owner, name, descriptor), 1);
+        }
+
+        void putStatic(String owner, String name, String descriptor) {
+            op2(PUTSTATIC, file.fieldRef(owner, name, descriptor), -1);
+        }
+
+        // Emits a branch with a placeholder offset and returns its position
+        // for patch().
+        int jump(int opcode, int stackEffect) {
+            int at = length;
+            op2(opcode, 0, stackEffect);
+            return at;
+        }
+
+        void patch(int at) {
+            int offset = length - at;
+            if (offset > Short.MAX_VALUE) throw new JitCompiler.Unsupported("method too large");
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+
+        void jumpBack(int opcode, int target, int stackEffect) {
+            int offset = target - length;
+            if (offset < Short.MIN_VALUE) throw new JitCompiler.Unsupported("method too large");
+            op2(opcode, offset & 0xffff, stackEffect);
+        }
+
+        private void adjust(int stackEffect) {
+            stack += stackEffect;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                if (length >= 65535) throw new JitCompiler.Unsupported("method too large");
+                byte[] grown = new byte[length * 2];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        // In stack slots, so doubles count twice.
+        private static int argumentSize(String descriptor) {
+            int size = 0;
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                boolean array = c == '[';
+                while (c == '[') c = descriptor.charAt(++i);
+                if (c == 'L') i = descriptor.indexOf(';', i);
+                i++;
+                size += !array && (c == 'D' || c == 'J') ? 2 : 1;
+            }
+            return size;
+        }
+
+        private static int returnSize(String descriptor) {
+            if (descriptor.endsWith(")V")) return 0;
+            return descriptor.endsWith(")D") || descriptor.endsWith(")J") ? 2 : 1;
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package jettchen.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The --engine=closure backend. After resolution every node is converted
+// once into a tree of lambdas with its operator, slots and constants
+// already bound, so running the program never goes through accept() or
+// switches on token types. Each lambda gets the environment it runs in
+// as an argument rather than reading an interpreter field.
+//
+// Statements return NORMAL when they complete, or the value of a return
+// statement (null for nil) to unwind to the enclosing function.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Eval>,
+        Stmt.Visitor<ClosureCompiler.Exec> {
+    interface Eval {
+        Object eval(Environment env);
+    }
+
+    interface Exec {
+        Object exec(Environment env);
+    }
+
+    static final Object NORMAL = new Object();
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements) {
+        Exec[] program = compile(statements);
+        try {
+            for (Exec stmt : program) {
+                stmt.exec(globals);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private Exec[] compile(List<Stmt> statements) {
+        Exec[] compiled = new Exec[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = statements.get(i).accept(this);
+        }
+        return compiled;
+    }
+
+    private Eval[] compileExprs(List<Expr> exprs) {
+        Eval[] compiled = new Eval[exprs.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = exprs.get(i).accept(this);
+        }
+        return compiled;
+    }
+
+    private static Object run(Exec[] statements, Environment env) {
+        for (Exec stmt : statements) {
+            Object result = stmt.exec(env);
+            if (result != NORMAL) return result;
+        }
+        return NORMAL;
+    }
+
+    // Top-level declarations go into the globals by name; everything else
+    // takes the next slot of its frame. Returns that slot, or -1.
+    private int declare(Environment env, Token name, Object value) {
+        if (env == globals) {
+            globals.define(name.lexeme, value);
+            return -1;
+        }
+        return env.define(value);
+    }
+
+    @Override
+    public Eval visitAssignExpr(Expr.Assign expr) {
+        Eval value = expr.value.accept(this);
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (expr.boxed && depth >= 0) {
+            return env -> {
+                Object result = value.eval(env);
+                ((Cell) env.getAt(depth, slot)).value = result;
+                return result;
+            };
+        }
+        if (expr.boxed) {
+            return env -> {
+                Object result = value.eval(env);
+                ((Cell) env.upvalues[upvalue]).value = result;
+                return result;
+            };
+        }
+        if (depth < 0) {
+            return env -> {
+                Object result = value.eval(env);
+                interpreter.assignGlobal(expr, result);
+                return result;
+            };
+        }
+        return env -> {
+            Object result = value.eval(env);
+            env.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Eval visitBinaryExpr(Expr.Binary expr) {
+        Eval left = expr.left.accept(this);
+        Eval right = expr.right.accept(this);
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case PLUS:
+                return env -> JitRuntime.add(left.eval(env), right.eval(env), operator);
+            case MINUS:
+                return env -> JitRuntime.subtract(left.eval(env), right.eval(env), operator);
+            case STAR:
+                return env -> JitRuntime.multiply(left.eval(env), right.eval(env), operator);
+            case SLASH:
+                return env -> JitRuntime.divide(left.eval(env), right.eval(env), operator);
+            case GREATER:
+                return env -> JitRuntime.greater(left.eval(env), right.eval(env), operator);
+            case GREATER_EQUAL:
+                return env -> JitRuntime.greaterEqual(left.eval(env), right.eval(env), operator);
+            case LESS:
+                return env -> JitRuntime.less(left.eval(env), right.eval(env), operator);
+            case LESS_EQUAL:
+                return env -> JitRuntime.lessEqual(left.eval(env), right.eval(env), operator);
+            case BANG_EQUAL:
+                return env -> !Values.isEqual(left.eval(env), right.eval(env));
+            case EQUAL_EQUAL:
+                return env -> Values.isEqual(left.eval(env), right.eval(env));
+        }
+        return env -> {
+            left.eval(env);
+            right.eval(env);
+            return null;
+        };
+    }
+
+    @Override
+    public Eval visitCallExpr(Expr.Call expr) {
+        Eval[] args = compileExprs(expr.arguments);
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Eval object = get.object.accept(this);
+            switch (args.length) {
+                case 0:
+                    return env -> {
+                        Object receiver = object.eval(env);
+                        Object callee = JitRuntime.callee(receiver, get);
+                        return JitRuntime.invoke0(interpreter, receiver, callee, expr);
+                    };
+                case 1: {
+                    Eval a = args[0];
+                    return env -> {
+                        Object receiver = object.eval(env);
+                        Object callee = JitRuntime.callee(receiver, get);
+                        return JitRuntime.invoke1(interpreter, receiver, callee, a.eval(env), expr);
+                    };
+                }
+                case 2: {
+                    Eval a = args[0];
+                    Eval b = args[1];
+                    return env -> {
+                        Object receiver = object.eval(env);
+                        Object callee = JitRuntime.callee(receiver, get);
+                        Object first = a.eval(env);
+                        return JitRuntime.invoke2(interpreter, receiver, callee, first,
+                                b.eval(env), expr);
+                    };
+                }
+                default:
+                    return env -> {
+                        Object receiver = object.eval(env);
+                        Object callee = JitRuntime.callee(receiver, get);
+                        return JitRuntime.invoke(interpreter, receiver, callee,
+                                evalAll(args, env), expr);
+                    };
+            }
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            int upvalue = callee.upvalue;
+            Eval self = visitThisExpr(callee.receiver);
+            return env -> {
+                Object receiver = self.eval(env);
+                Object method = JitRuntime.superMethod(env.upvalues[upvalue], callee);
+                return JitRuntime.invoke(interpreter, receiver, method, evalAll(args, env), expr);
+            };
+        }
+        Eval function = expr.callee.accept(this);
+        switch (args.length) {
+            case 0:
+                return env -> JitRuntime.call0(interpreter, function.eval(env), expr);
+            case 1: {
+                Eval a = args[0];
+                return env -> {
+                    Object callee = function.eval(env);
+                    return JitRuntime.call1(interpreter, callee, a.eval(env), expr);
+                };
+            }
+            case 2: {
+                Eval a = args[0];
+                Eval b = args[1];
+                return env -> {
+                    Object callee = function.eval(env);
+                    Object first = a.eval(env);
+                    return JitRuntime.call2(interpreter, callee, first, b.eval(env), expr);
+                };
+            }
+            case 3: {
+                Eval a = args[0];
+                Eval b = args[1];
+                Eval c = args[2];
+                return env -> {
+                    Object callee = function.eval(env);
+                    Object first = a.eval(env);
+                    Object second = b.eval(env);
+                    return JitRuntime.call3(interpreter, callee, first, second, c.eval(env), expr);
+                };
+            }
+            default:
+                return env -> {
+                    Object callee = function.eval(env);
+                    return JitRuntime.call(interpreter, callee, evalAll(args, env), expr);
+                };
+        }
+    }
+
+    // Evaluates a call in tail position up to the point of calling, as
+    // Interpreter.tailCall() does.
+    private Eval tailCall(Expr.Call expr) {
+        Eval[] args = compileExprs(expr.arguments);
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Eval object = get.object.accept(this);
+            return env -> {
+                Object receiver = object.eval(env);
+                Object callee = JitRuntime.callee(receiver, get);
+                return JitRuntime.tailInvoke(interpreter, receiver, callee, evalAll(args, env),
+                        expr);
+            };
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            int upvalue = callee.upvalue;
+            Eval self = visitThisExpr(callee.receiver);
+            return env -> {
+                Object receiver = self.eval(env);
+                Object method = JitRuntime.superMethod(env.upvalues[upvalue], callee);
+                return JitRuntime.tailInvoke(interpreter, receiver, method, evalAll(args, env),
+                        expr);
+            };
+        }
+        Eval function = expr.callee.accept(this);
+        return env -> {
+            Object callee = function.eval(env);
+            return JitRuntime.tailCall(interpreter, callee, evalAll(args, env), expr);
+        };
+    }
+
+    private static Object[] evalAll(Eval[] args, Environment env) {
+        Object[] values = new Object[args.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args[i].eval(env);
+        }
+        return values;
+    }
+
+    @Override
+    public Eval visitGetExpr(Expr.Get expr) {
+        Eval object = expr.object.accept(this);
+        return env -> JitRuntime.get(object.eval(env), expr);
+    }
+
+    @Override
+    public Eval visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Eval visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return env -> value;
+    }
+
+    @Override
+    public Eval visitLogicalExpr(Expr.Logical expr) {
+        Eval left = expr.left.accept(this);
+        Eval right = expr.right.accept(this);
+        if (expr.operator.type == TokenType.OR) {
+            return env -> {
+                Object value = left.eval(env);
+                return Values.isTruthy(value) ? value : right.eval(env);
+            };
+        }
+        return env -> {
+            Object value = left.eval(env);
+            return Values.isTruthy(value) ? right.eval(env) : value;
+        };
+    }
+
+    @Override
+    public Eval visitSetExpr(Expr.Set expr) {
+        Eval object = expr.object.accept(this);
+        Eval value = expr.value.accept(this);
+        return env -> {
+            Object target = object.eval(env);
+            JitRuntime.checkSettable(target, expr);
+            return JitRuntime.set(target, value.eval(env), expr);
+        };
+    }
+
+    @Override
+    public Eval visitSuperExpr(Expr.Super expr) {
+        int upvalue = expr.upvalue;
+        Eval self = visitThisExpr(expr.receiver);
+        return env -> JitRuntime.bindSuper(env.upvalues[upvalue], self.eval(env), expr);
+    }
+
+    @Override
+    public Eval visitThisExpr(Expr.This expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (depth < 0) return env -> env.upvalues[upvalue];
+        return env -> env.getAt(depth, slot);
+    }
+
+    @Override
+    public Eval visitUnaryExpr(Expr.Unary expr) {
+        Eval right = expr.right.accept(this);
+        Token operator = expr.operator;
+        if (operator.type == TokenType.MINUS) {
+            return env -> JitRuntime.negate(right.eval(env), operator);
+        }
+        return env -> !Values.isTruthy(right.eval(env));
+    }
+
+    @Override
+    public Eval visitVariableExpr(Expr.Variable expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int upvalue = expr.upvalue;
+        if (expr.boxed && depth >= 0) return env -> ((Cell) env.getAt(depth, slot)).value;
+        if (expr.boxed) return env -> ((Cell) env.upvalues[upvalue]).value;
+        if (depth >= 0) return env -> env.getAt(depth, slot);
+        if (upvalue >= 0) return env -> env.upvalues[upvalue];
+        return env -> interpreter.readGlobal(expr);
+    }
+
+    @Override
+    public Eval visitCommaExpr(Expr.Comma expr) {
+        Eval left = expr.left.accept(this);
+        Eval right = expr.right.accept(this);
+        return env -> {
+            left.eval(env);
+            return right.eval(env);
+        };
+    }
+
+    @Override
+    public Eval visitTernaryExpr(Expr.Ternary expr) {
+        Eval condition = expr.condition.accept(this);
+        Eval then = expr.then.accept(this);
+        Eval otherwise = expr.otherwise.accept(this);
+        return env -> Values.isTruthy(condition.eval(env)) ? then.eval(env) : otherwise.eval(env);
+    }
+
+    @Override
+    public Exec visitBlockStmt(Stmt.Block stmt) {
+        Exec[] body = compile(stmt.statements);
+        int size = stmt.frameSize;
+        if (size == 0) return env -> run(body, env);
+        FrameStack frames = interpreter.frames;
+        return env -> {
+            Environment frame = frames.push(env, env.upvalues, size);
+            try {
+                return run(body, frame);
+            } finally {
+                frames.pop();
+            }
+        };
+    }
+
+    @Override
+    public Exec visitClassStmt(Stmt.Class stmt) {
+        Eval superclassValue = stmt.superclass == null ? null : stmt.superclass.accept(this);
+        for (Stmt.Function method : stmt.methods) {
+            compileBody(method);
+        }
+        return env -> {
+            Object superclass = null;
+            if (superclassValue != null) {
+                superclass = superclassValue.eval(env);
+                if (!(superclass instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name,
+                            "Superclass must be a class");
+                }
+            }
+            Cell cell = stmt.boxed ? new Cell(null) : null;
+            int slot = declare(env, stmt.name, cell);
+
+            Environment methodClosure = env;
+            if (superclass != null) {
+                methodClosure = new Environment(env, 1);
+                methodClosure.define(superclass);
+            }
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                methods.put(method.name.lexeme, new LoxFunction(method, methodClosure.capture(method),
+                        method.name.lexeme.equals("init"), null));
+            }
+            LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
+            if (env == globals) {
+                globals.define(stmt.name.lexeme, klass);
+            } else if (cell != null) {
+                cell.value = klass;
+            } else {
+                env.assignAt(0, slot, klass);
+            }
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitExpressionStmt(Stmt.Expression stmt) {
+        Eval expression = stmt.expression.accept(this);
+        return env -> {
+            expression.eval(env);
+            return NORMAL;
+        };
+    }
+
+    // A function's body runs directly in the frame LoxFunction builds for
+    // it, which already holds the receiver and the arguments.
+    private void compileBody(Stmt.Function function) {
+        Exec[] body = compile(function.body);
+        function.compiledBody = env -> run(body, env);
+    }
+
+    @Override
+    public Exec visitFunctionStmt(Stmt.Function stmt) {
+        compileBody(stmt);
+        if (stmt.boxed) {
+            return env -> {
+                Cell cell = new Cell(null);
+                declare(env, stmt.name, cell);
+                cell.value = new LoxFunction(stmt, env.capture(stmt));
+                return NORMAL;
+            };
+        }
+        return env -> {
+            declare(env, stmt.name, new LoxFunction(stmt, env.capture(stmt)));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitIfStmt(Stmt.If stmt) {
+        Eval condition = stmt.condition.accept(this);
+        Exec thenBranch = stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            return env -> Values.isTruthy(condition.eval(env)) ? thenBranch.exec(env) : NORMAL;
+        }
+        Exec elseBranch = stmt.elseBranch.accept(this);
+        return env -> Values.isTruthy(condition.eval(env))
+                ? thenBranch.exec(env) : elseBranch.exec(env);
+    }
+
+    @Override
+    public Exec visitPrintStmt(Stmt.Print stmt) {
+        Eval expression = stmt.expression.accept(this);
+        return env -> {
+            JitRuntime.print(expression.eval(env));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return env -> null;
+        Eval value = stmt.tailCall ? tailCall((Expr.Call) stmt.value) : stmt.value.accept(this);
+        return value::eval;
+    }
+
+    @Override
+    public Exec visitVarStmt(Stmt.Var stmt) {
+        Eval initializer = stmt.initializer == null ? null : stmt.initializer.accept(this);
+        if (stmt.boxed) {
+            return env -> {
+                declare(env, stmt.name, new Cell(initializer == null ? null : initializer.eval(env)));
+                return NORMAL;
+            };
+        }
+        return env -> {
+            declare(env, stmt.name, initializer == null ? null : initializer.eval(env));
+            return NORMAL;
+        };
+    }
+
+    @Override
+    public Exec visitWhileStmt(Stmt.While stmt) {
+        Eval condition = stmt.condition.accept(this);
+        Exec body = stmt.body.accept(this);
+        return env -> {
+            while (Values.isTruthy(condition.eval(env))) {
+                Object result = body.exec(env);
+                if (result != NORMAL) return result;
+            }
+            return NORMAL;
+        };
+    }
+}
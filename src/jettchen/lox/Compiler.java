@@ -0,0 +1,663 @@
+package jettchen.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a resolved syntax tree into bytecode for the VM. Scoping is
+// tracked the same way the Resolver does it, so by the time we get here all
+// static errors have already been reported and we only need to decide which
+// names live in stack slots, which in upvalues and which are globals.
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_SLOTS = 256;
+    private static final int MAX_SHORT = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<String, Integer> identifiers = new HashMap<>();
+        int scopeDepth = 0;
+        int stackDepth = 1;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the callee, or the receiver inside methods.
+            boolean isMethod = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(isMethod ? "this" : "", 0));
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line = 1;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null), FunctionType.SCRIPT);
+        for (Stmt stmt : statements) {
+            compile(stmt);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitByte(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emit(byte op) {
+        emitByte(op);
+        adjustStack(stackEffect(op));
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emitByte(operand);
+    }
+
+    private void emitShort(byte op, int operand) {
+        emit(op);
+        emitByte((operand >> 8) & 0xff);
+        emitByte(operand & 0xff);
+    }
+
+    // Tracks the operand stack height so the VM can size each frame up
+    // front instead of bounds checking every push. Lox control flow is
+    // structured, so both arms of a branch leave the stack at the same
+    // height and a linear walk over the emitted code is enough, as long as
+    // each arm is counted from the height at the branch: the second arm
+    // starts where the first one did, not where it ended.
+    private void adjustStack(int delta) {
+        current.stackDepth += delta;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private static int stackEffect(byte op) {
+        switch (op) {
+            case OpCode.CONSTANT:
+            case OpCode.NIL:
+            case OpCode.TRUE:
+            case OpCode.FALSE:
+            case OpCode.GET_LOCAL:
+            case OpCode.GET_GLOBAL:
+            case OpCode.GET_UPVALUE:
+            case OpCode.CLOSURE:
+            case OpCode.CLASS:
+                return 1;
+            case OpCode.POP:
+            case OpCode.DEFINE_GLOBAL:
+            case OpCode.SET_PROPERTY:
+            case OpCode.GET_SUPER:
+            case OpCode.EQUAL:
+            case OpCode.GREATER:
+            case OpCode.GREATER_EQUAL:
+            case OpCode.LESS:
+            case OpCode.LESS_EQUAL:
+            case OpCode.ADD:
+            case OpCode.SUBTRACT:
+            case OpCode.MULTIPLY:
+            case OpCode.DIVIDE:
+            case OpCode.PRINT:
+            case OpCode.CLOSE_UPVALUE:
+            case OpCode.RETURN:
+            case OpCode.INHERIT:
+            case OpCode.METHOD:
+                return -1;
+            case OpCode.SUPER_INVOKE:
+                // Pops the superclass; the arguments are accounted for by the caller.
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
+    private int emitJump(byte op) {
+        emitShort(op, 0xffff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_SHORT) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        int offset = chunk().count - loopStart + 3;
+        if (offset > MAX_SHORT) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitShort(OpCode.LOOP, offset);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = chunk().addConstant(value);
+        if (constant > MAX_SHORT) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private int identifierConstant(Token name) {
+        Integer index = current.identifiers.get(name.lexeme);
+        if (index != null) return index;
+        int constant = makeConstant(name.lexeme);
+        chunk().names.set(constant);
+        current.identifiers.put(name.lexeme, constant);
+        return constant;
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.seal();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.remove(locals.size() - 1).isCaptured) {
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+        }
+    }
+
+    private void addLocal(Token name, String lexeme) {
+        if (current.locals.size() == MAX_SLOTS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(lexeme, current.scopeDepth));
+    }
+
+    // Binds the value on top of the stack to a new variable.
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name, name.lexeme);
+            return;
+        }
+        emitShort(OpCode.DEFINE_GLOBAL, vm.globalSlot(name.lexeme));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token token, String name) {
+        if (state.enclosing == null) return -1;
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, token, local, true);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, token, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, token, upvalue, false);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, Token token, int index, boolean isLocal) {
+        List<Upvalue> upvalues = state.upvalues;
+        for (int i = 0; i < upvalues.size(); i++) {
+            Upvalue upvalue = upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+        if (upvalues.size() == MAX_SLOTS) {
+            Lox.error(token, "Too many closure variables in function.");
+            return 0;
+        }
+        upvalues.add(new Upvalue(index, isLocal));
+        return upvalues.size() - 1;
+    }
+
+    private void getVariable(Token token, String name) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(OpCode.GET_LOCAL, arg);
+        } else if ((arg = resolveUpvalue(current, token, name)) != -1) {
+            emit(OpCode.GET_UPVALUE, arg);
+        } else {
+            emitShort(OpCode.GET_GLOBAL, vm.globalSlot(name));
+        }
+    }
+
+    private void setVariable(Token token) {
+        String name = token.lexeme;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(OpCode.SET_LOCAL, arg);
+        } else if ((arg = resolveUpvalue(current, token, name)) != -1) {
+            emit(OpCode.SET_UPVALUE, arg);
+        } else {
+            emitShort(OpCode.SET_GLOBAL, vm.globalSlot(name));
+        }
+    }
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        current = new FunctionState(current, new ObjFunction(declaration.name.lexeme), type);
+        FunctionState state = current;
+        beginScope();
+        state.function.arity = declaration.params.size();
+        state.stackDepth += declaration.params.size();
+        for (Token param : declaration.params) {
+            addLocal(param, param.lexeme);
+        }
+        for (Stmt stmt : declaration.body) {
+            compile(stmt);
+        }
+        ObjFunction function = endFunction();
+
+        line = declaration.name.line;
+        emitShort(OpCode.CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private void arguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emit(OpCode.EQUAL); emit(OpCode.NOT); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case PLUS: emit(OpCode.ADD); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // A tail call is followed by a RETURN that only runs when the VM could
+    // not reuse the frame, as for natives.
+    private void call(Expr.Call expr, boolean tail) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            arguments(expr.arguments);
+            line = expr.paren.line;
+            emitShort(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE, identifierConstant(get.name));
+            emitByte(expr.arguments.size());
+            adjustStack(-expr.arguments.size());
+            return;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            line = callee.keyword.line;
+            getVariable(callee.keyword, "this");
+            arguments(expr.arguments);
+            line = expr.paren.line;
+            getVariable(callee.keyword, "super");
+            emitShort(tail ? OpCode.TAIL_SUPER_INVOKE : OpCode.SUPER_INVOKE,
+                    identifierConstant(callee.method));
+            emitByte(expr.arguments.size());
+            adjustStack(-expr.arguments.size());
+            return;
+        }
+        compile(expr.callee);
+        arguments(expr.arguments);
+        line = expr.paren.line;
+        emit(tail ? OpCode.TAIL_CALL : OpCode.CALL, expr.arguments.size());
+        adjustStack(-expr.arguments.size());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitShort(OpCode.GET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emit((Boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emitShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int branchDepth = current.stackDepth;
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            current.stackDepth = branchDepth;
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitShort(OpCode.SET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        getVariable(expr.keyword, "this");
+        getVariable(expr.keyword, "super");
+        emitShort(OpCode.GET_SUPER, identifierConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        getVariable(expr.keyword, "this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        if (expr.operator.type == TokenType.MINUS) {
+            emit(OpCode.NEGATE);
+        } else {
+            emit(OpCode.NOT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name, expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitCommaExpr(Expr.Comma expr) {
+        compile(expr.left);
+        emit(OpCode.POP);
+        compile(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int branchDepth = current.stackDepth;
+        emit(OpCode.POP);
+        compile(expr.then);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        current.stackDepth = branchDepth;
+        emit(OpCode.POP);
+        compile(expr.otherwise);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        emitShort(OpCode.CLASS, identifierConstant(stmt.name));
+        defineVariable(stmt.name);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal(stmt.superclass.name, "super");
+            getVariable(stmt.name, stmt.name.lexeme);
+            line = stmt.superclass.name.line;
+            emit(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        getVariable(stmt.name, stmt.name.lexeme);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init")
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitShort(OpCode.METHOD, identifierConstant(method.name));
+        }
+        emit(OpCode.POP);
+
+        if (classState.hasSuperclass) endScope();
+        currentClass = currentClass.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        // Locals are declared before the body so the function can refer to itself.
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name, stmt.name.lexeme);
+            function(stmt, FunctionType.FUNCTION);
+            return null;
+        }
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int branchDepth = current.stackDepth;
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        current.stackDepth = branchDepth;
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else if (stmt.tailCall) {
+            call((Expr.Call) stmt.value, true);
+            line = stmt.keyword.line;
+            emit(OpCode.RETURN);
+        } else {
+            compile(stmt.value);
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            line = stmt.name.line;
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = chunk().count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        int branchDepth = current.stackDepth;
+        emit(OpCode.POP);
+        compile(stmt.body);
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        current.stackDepth = branchDepth;
+        emit(OpCode.POP);
+        return null;
+    }
+}
@@ -1,22 +1,96 @@
 package jettchen.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    Environment enclosing;
+    // Only the global environment looks names up by string; every local
+    // scope is a fixed-size frame whose slots the Resolver handed out.
+    // Globals live in cells so use sites can cache them after one lookup.
+    private final Map<String, Cell> values;
+    private Object[] slots;
+    private int defined = 0;
+    // The values the running function's closure captured, shared by its
+    // frame and every block inside it. Variables that are captured and
+    // also assigned are Cells, in the slots and in the closures alike.
+    Object[] upvalues;
+
+    static final Object[] NO_UPVALUES = new Object[0];
 
     Environment(){
         enclosing=null;
+        values = new HashMap<>();
+        slots = null;
+        upvalues = NO_UPVALUES;
+    }
+
+    Environment(Environment enclosing, int size){
+        this.enclosing = enclosing;
+        this.values = null;
+        this.slots = new Object[size];
+        this.upvalues = enclosing.upvalues;
+    }
+
+    // An empty frame for the FrameStack to hand out.
+    Environment(int capacity){
+        this.values = null;
+        this.slots = new Object[capacity];
     }
 
-    Environment(Environment enclosing){
+    // Prepares a recycled frame for a new scope. A function's frame has no
+    // enclosing environment: everything outside it is reached through the
+    // upvalues.
+    void reset(Environment enclosing, Object[] upvalues, int size) {
         this.enclosing = enclosing;
+        this.upvalues = upvalues;
+        if (slots.length < size) slots = new Object[size];
+        defined = 0;
+    }
+
+    // Lets go of the scope's values once it has exited.
+    void clear() {
+        Arrays.fill(slots, 0, defined, null);
+        enclosing = null;
+        upvalues = null;
     }
 
     void define(String name, Object value){
-        values.put(name,value);
+        Cell cell = values.get(name);
+        if (cell == null) {
+            values.put(name, new Cell(value));
+        } else {
+            // Redefining (as the REPL allows) must reuse the cell, or sites
+            // that already cached it would keep seeing the old value.
+            cell.value = value;
+        }
+    }
+
+    // Locals are declared in the same order the Resolver numbered them, so
+    // the next free slot is the one it assigned. Returns that slot.
+    int define(Object value){
+        slots[defined] = value;
+        return defined++;
+    }
+
+    // Moves the values of captured, assigned parameters into Cells.
+    void box(int[] slots) {
+        for (int slot : slots) {
+            this.slots[slot] = new Cell(this.slots[slot]);
+        }
+    }
+
+    // What a closure over the function captures from this environment.
+    Object[] capture(Stmt.Function function) {
+        int[] depths = function.captureDepths;
+        if (depths.length == 0) return NO_UPVALUES;
+        int[] slots = function.captureSlots;
+        Object[] captured = new Object[depths.length];
+        for (int i = 0; i < depths.length; i++) {
+            captured[i] = depths[i] < 0 ? upvalues[slots[i]] : getAt(depths[i], slots[i]);
+        }
+        return captured;
     }
 
     Environment ancestor(int distance){
@@ -27,31 +101,16 @@ public class Environment {
         return env;
     }
 
-    Object get(Token name){
-        if(values.containsKey(name.lexeme)){
-            return values.get(name.lexeme);
-        }
-        if(enclosing!=null)return enclosing.get(name);
-        throw new RuntimeError(name, "Undefined variable: '"+name.lexeme+"'.");
-    }
-
-    void assign(Token name, Object value){
-        if(values.containsKey(name.lexeme)){
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing!=null){
-            enclosing.assign(name, value);
-            return;
-        }
-        throw new RuntimeError(name, "Undefined variable '"+name.lexeme+"'.");
+    // The cell holding a global, or null if it has never been defined.
+    Cell cell(String name){
+        return values.get(name);
     }
 
-    public Object getAt(Integer distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value){
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value){
+        ancestor(distance).slots[slot] = value;
     }
 }
@@ -31,6 +31,11 @@ this.value = value;
 } 
  final Token name;
  final Expr value;
+ int depth = -1;
+ int slot;
+ int upvalue = -1;
+ boolean boxed;
+ Cell global;
  }
  static class Binary extends Expr {
  Binary(Expr left, Token operator, Expr right){ 
@@ -46,6 +51,8 @@ this.right = right;
  final Expr left;
  final Token operator;
  final Expr right;
+ int state;
+ boolean unboxed;
  }
  static class Call extends Expr {
  Call(Expr callee, Token paren, List<Expr> arguments){ 
@@ -74,6 +81,7 @@ this.name = name;
 } 
  final Expr object;
  final Token name;
+ InlineCache cache;
  }
  static class Grouping extends Expr {
  Grouping(Expr expression){ 
@@ -126,6 +134,7 @@ this.value = value;
  final Expr object;
  final Token name;
  final Expr value;
+ InlineCache cache;
  }
  static class Super extends Expr {
  Super(Token keyword, Token method){ 
@@ -139,6 +148,8 @@ this.method = method;
 } 
  final Token keyword;
  final Token method;
+ int upvalue = -1;
+ This receiver;
  }
  static class This extends Expr {
  This(Token keyword){ 
@@ -150,6 +161,9 @@ this.keyword = keyword;
  return visitor.visitThisExpr(this);
 } 
  final Token keyword;
+ int depth = -1;
+ int slot;
+ int upvalue = -1;
  }
  static class Unary extends Expr {
  Unary(Token operator, Expr right){ 
@@ -174,6 +188,11 @@ this.name = name;
  return visitor.visitVariableExpr(this);
 } 
  final Token name;
+ int depth = -1;
+ int slot;
+ int upvalue = -1;
+ boolean boxed;
+ Cell global;
  }
  static class Comma extends Expr {
  Comma(Expr left, Expr right){ 
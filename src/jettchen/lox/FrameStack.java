@@ -0,0 +1,31 @@
+package jettchen.lox;
+
+import java.util.Arrays;
+
+// The frames of running functions and blocks. Closures copy the values
+// they capture (or share their Cells), so no frame is ever referenced
+// after its scope exits, and each one goes back on this stack to be
+// reused instead of being allocated per call or per block. Each
+// interpreter, and so each thread, has its own.
+class FrameStack {
+    private Environment[] frames = new Environment[64];
+    private int count = 0;
+
+    Environment push(Environment enclosing, Object[] upvalues, int size) {
+        if (count == frames.length) frames = Arrays.copyOf(frames, count * 2);
+        Environment frame = frames[count];
+        if (frame == null) {
+            frame = new Environment(Math.max(size, 8));
+            frames[count] = frame;
+        }
+        count++;
+        frame.reset(enclosing, upvalues, size);
+        return frame;
+    }
+
+    // Frames are popped in finally blocks, so an error unwinding through
+    // them leaves the stack balanced.
+    void pop() {
+        frames[--count].clear();
+    }
+}
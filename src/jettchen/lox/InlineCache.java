@@ -0,0 +1,134 @@
+package jettchen.lox;
+
+// A per-site cache for property access, keyed by the receiver's shape. A
+// shape fixes both the field layout and the class, so a hit tells us the
+// field's slot, or the method a get resolves to, or the shape a set moves
+// the instance to, without looking the name up again.
+class InlineCache {
+    // Past this many receiver shapes a site is megamorphic: it stops caching
+    // and goes back to plain lookups.
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    // Hits and misses are only counted for --ic-stats.
+    static long hits = 0;
+    static long misses = 0;
+    static int sites = 0;
+    static int polymorphicSites = 0;
+    static int megamorphicSites = 0;
+
+    private final Shape[] shapes = new Shape[POLYMORPHIC_LIMIT];
+    // The field slot for each shape, or -1 when a get finds a method.
+    private final int[] slots = new int[POLYMORPHIC_LIMIT];
+    // A get's method, or the shape a set leaves the instance in.
+    private final Object[] targets = new Object[POLYMORPHIC_LIMIT];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    // A site gets its cache the first time it runs, so property accesses
+    // that never execute cost nothing.
+    static InlineCache of(Expr.Get expr) {
+        InlineCache cache = expr.cache;
+        if (cache == null) expr.cache = cache = new InlineCache();
+        return cache;
+    }
+
+    static InlineCache of(Expr.Set expr) {
+        InlineCache cache = expr.cache;
+        if (cache == null) expr.cache = cache = new InlineCache();
+        return cache;
+    }
+
+    Object get(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (Lox.icStats) hits++;
+                int slot = slots[i];
+                if (slot >= 0) return instance.values[slot];
+                return ((LoxFunction) targets[i]).bind(instance);
+            }
+        }
+        if (Lox.icStats) misses++;
+        int slot = shape.slotOf(name.lexeme);
+        if (slot >= 0) {
+            add(shape, slot, null);
+            return instance.values[slot];
+        }
+        LoxFunction method = findMethod(shape, name);
+        add(shape, -1, method);
+        return method.bind(instance);
+    }
+
+    // The unbound method a get of this name would return, or null when the
+    // name is a field. Lets o.m() call the method without binding it.
+    LoxFunction method(LoxInstance instance, Token name) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (Lox.icStats) hits++;
+                return slots[i] >= 0 ? null : (LoxFunction) targets[i];
+            }
+        }
+        if (Lox.icStats) misses++;
+        int slot = shape.slotOf(name.lexeme);
+        if (slot >= 0) {
+            add(shape, slot, null);
+            return null;
+        }
+        LoxFunction method = findMethod(shape, name);
+        add(shape, -1, method);
+        return method;
+    }
+
+    private static LoxFunction findMethod(Shape shape, Token name) {
+        LoxFunction method = shape.klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '"+name.lexeme+"'.");
+        }
+        return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) {
+                if (Lox.icStats) hits++;
+                instance.put((Shape) targets[i], slots[i], value);
+                return;
+            }
+        }
+        if (Lox.icStats) misses++;
+        int slot = shape.slotOf(name.lexeme);
+        Shape next = shape;
+        if (slot < 0) {
+            slot = shape.size();
+            next = shape.with(name.lexeme);
+        }
+        add(shape, slot, next);
+        instance.put(next, slot, value);
+    }
+
+    private void add(Shape shape, int slot, Object target) {
+        if (megamorphic) return;
+        if (size == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            megamorphicSites++;
+            polymorphicSites--;
+            return;
+        }
+        if (size == 0) sites++;
+        if (size == 1) polymorphicSites++;
+        shapes[size] = shape;
+        slots[size] = slot;
+        targets[size] = target;
+        size++;
+    }
+
+    static void printStats() {
+        long lookups = hits + misses;
+        System.err.printf("inline caches: %d sites, %d polymorphic, %d megamorphic%n",
+                sites, polymorphicSites, megamorphicSites);
+        System.err.printf("  %d lookups, %d hits (%.1f%%), %d misses%n",
+                lookups, hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups, misses);
+    }
+}
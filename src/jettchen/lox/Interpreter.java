@@ -1,16 +1,43 @@
 package jettchen.lox;
-import java.util.ArrayList;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+
+    // What executing a statement did. A return hands its value over through
+    // returnValue instead of throwing, so unwinding out of nested blocks
+    // and loops costs no more than finishing them normally.
+    enum Completion {
+        NORMAL,
+        RETURN
+    }
 
     final Environment globals = new Environment();
     private Environment environment = globals;
-
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    final FrameStack frames = new FrameStack();
+    Object returnValue = null;
+    // A call in tail position hands the function to call over here and
+    // returns TAIL_CALL, in every engine, and LoxFunction makes the call
+    // once the returning function has finished instead of nesting it.
+    static final Object TAIL_CALL = new Object();
+    LoxFunction tailFunction;
+    LoxInstance tailReceiver;
+    Object[] tailArguments;
+    // Let Binary nodes specialize on the operand types they see; see
+    // BinaryNode.
+    boolean specialize = false;
+    // The tiering policy when --jit is on, and the function whose body is
+    // running, so loops can credit their back edges to it.
+    Jit jit = null;
+    Stmt.Function running = null;
+    // The operands numberOperands() evaluated, unboxed, and the ones
+    // specializedOperands() fell back on when they weren't both numbers.
+    private double leftNumber;
+    private double rightNumber;
+    private Object leftValue;
+    private Object rightValue;
 
     Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -20,7 +47,12 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis()/1000.0;
             }
 
@@ -38,46 +70,274 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } finally {
+            // However the line ended, no function is running before the next.
+            running = null;
         }
     }
 
-    private String stringify(Object object) {
-        if (object == null) return "nil";
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
-        return object.toString();
-    }
-
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance!=null){
-            environment.assignAt(distance, expr.name, value);
+        if (expr.boxed) {
+            Object cell = expr.depth >= 0
+                    ? environment.getAt(expr.depth, expr.slot)
+                    : environment.upvalues[expr.upvalue];
+            ((Cell) cell).value = value;
+        } else if (expr.depth >= 0){
+            environment.assignAt(expr.depth, expr.slot, value);
         }else {
-            globals.assign(expr.name, value);
+            assignGlobal(expr, value);
         }
         return value;
     }
 
+    void assignGlobal(Expr.Assign expr, Object value) {
+        Cell cell = expr.global;
+        if (cell == null) {
+            cell = globals.cell(expr.name.lexeme);
+            if (cell == null) {
+                throw new RuntimeError(expr.name, "Undefined variable '"+expr.name.lexeme+"'.");
+            }
+            expr.global = cell;
+        }
+        cell.value = value;
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (specialize) {
+            if (expr.state == BinaryNode.NUMBERS || expr.state == BinaryNode.COMPARISON) {
+                return numbersBinary(expr);
+            }
+            // Evaluated here so a call in an operand nests no deeper than
+            // without --specialize.
+            return specializedBinary(expr, operand(expr.left), operand(expr.right));
+        }
+        if (expr.unboxed) return unboxedBinary(expr);
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        return binary(expr.operator, left, right);
+    }
+
+    private Object unboxedBinary(Expr.Binary expr) {
+        numberOperands(expr);
+        return numberResult(expr.operator.type);
+    }
+
+    private Object numberResult(TokenType operator) {
+        switch (operator) {
+            case GREATER: return leftNumber > rightNumber;
+            case GREATER_EQUAL: return leftNumber >= rightNumber;
+            case LESS: return leftNumber < rightNumber;
+            case LESS_EQUAL: return leftNumber <= rightNumber;
+        }
+        // Box once, for the whole arithmetic subtree.
+        return arithmetic(operator);
+    }
+
+    // A node that has only seen numbers, including those the Resolver
+    // marked unboxed, runs on the unboxed path.
+    private Object numbersBinary(Expr.Binary expr) {
+        if (specializedOperands(expr)) return numberResult(expr.operator.type);
+        if (expr.unboxed) throw operandsError(expr.operator);
+        expr.state = BinaryNode.GENERIC;
+        return binary(expr.operator, leftValue, rightValue);
+    }
+
+    // The other nodes run by their state.
+    private Object specializedBinary(Expr.Binary expr, Object left, Object right) {
+        switch (expr.state) {
+            case BinaryNode.UNINITIALIZED:
+                expr.state = BinaryNode.specialize(expr.operator.type, left, right);
+                break;
+            case BinaryNode.STRINGS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                expr.state = BinaryNode.GENERIC;
+                break;
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    // evaluateDouble() of a Binary under --specialize.
+    private double specializedDouble(Expr.Binary expr) {
+        if (specializedOperands(expr)) return arithmetic(expr.operator.type);
+        if (expr.unboxed) throw operandsError(expr.operator);
+        expr.state = BinaryNode.GENERIC;
+        throw new BinaryNode.Unexpected(binary(expr.operator, leftValue, rightValue));
+    }
+
+    // Expressions that can only produce a number (or fail) are evaluated as
+    // primitive doubles, so the intermediate results of arithmetic are never
+    // boxed. The Resolver marks the binary nodes that qualify as unboxed;
+    // that covers comparisons too, which read their operands unboxed.
+    static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return binary.unboxed && isArithmetic(binary.operator.type);
+        }
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Grouping) return isNumeric(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return unary.operator.type == TokenType.MINUS && isUnboxable(unary.right);
+        }
+        return false;
+    }
+
+    static boolean isArithmetic(TokenType operator) {
+        return operator == TokenType.PLUS || operator == TokenType.MINUS ||
+                operator == TokenType.STAR || operator == TokenType.SLASH;
+    }
+
+    static boolean isUnboxable(Expr expr) {
+        return isNumeric(expr) || expr instanceof Expr.Variable || expr instanceof Expr.Get;
+    }
+
+    // isNumeric(), plus the arithmetic nodes that have only seen numbers
+    // so far. Binary nodes and variables, the usual operands, are told
+    // apart first.
+    private static boolean isSpecializedNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary) expr).state == BinaryNode.NUMBERS;
+        if (expr instanceof Expr.Variable) return false;
+        if (expr instanceof Expr.Grouping) {
+            return isSpecializedNumeric(((Expr.Grouping) expr).expression);
+        }
+        return isNumeric(expr);
+    }
+
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (specialize) return specializedDouble(binary);
+            numberOperands(binary);
+            return arithmetic(binary.operator.type);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (isNumeric(unary.right)) return -evaluateDouble(unary.right);
+            Object right = evaluate(unary.right);
+            checkNumberOperand(unary.operator, right);
+            return -(double) right;
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Literal) {
+            return (double) ((Expr.Literal) expr).value;
+        }
+        throw new IllegalStateException("not a numeric expression");
+    }
+
+    private double arithmetic(TokenType operator) {
+        switch (operator) {
+            case PLUS: return leftNumber + rightNumber;
+            case MINUS: return leftNumber - rightNumber;
+            case STAR: return leftNumber * rightNumber;
+            case SLASH: return leftNumber / rightNumber;
+        }
+        throw new IllegalStateException("not an arithmetic operator");
+    }
+
+    // Evaluates both operands of an operator that needs numbers into
+    // leftNumber and rightNumber, which the caller reads straight away.
+    // Like the boxed path, both sides are evaluated before either is
+    // checked.
+    private void numberOperands(Expr.Binary expr) {
+        double left = 0;
+        double right = 0;
+        Object boxedLeft = null;
+        Object boxedRight = null;
+        boolean leftIsNumeric = isNumeric(expr.left);
+        if (leftIsNumeric) {
+            left = evaluateDouble(expr.left);
+        } else {
+            boxedLeft = evaluate(expr.left);
+        }
+        boolean rightIsNumeric = isNumeric(expr.right);
+        if (rightIsNumeric) {
+            right = evaluateDouble(expr.right);
+        } else {
+            boxedRight = evaluate(expr.right);
+        }
+        if (!leftIsNumeric) {
+            if (!(boxedLeft instanceof Double)) throw operandsError(expr.operator);
+            left = (double) boxedLeft;
+        }
+        if (!rightIsNumeric) {
+            if (!(boxedRight instanceof Double)) throw operandsError(expr.operator);
+            right = (double) boxedRight;
+        }
+        leftNumber = left;
+        rightNumber = right;
+    }
+
+    // numberOperands() for --specialize, where an operand may be a node
+    // that has only seen numbers so far. When the operands aren't both
+    // numbers after all it leaves them in leftValue and rightValue and
+    // returns false, so a specialized node can fall back on them.
+    private boolean specializedOperands(Expr.Binary expr) {
+        double left = 0;
+        double right = 0;
+        Object boxedLeft = null;
+        Object boxedRight = null;
+        boolean leftIsNumeric = isSpecializedNumeric(expr.left);
+        if (leftIsNumeric) {
+            try {
+                left = evaluateDouble(expr.left);
+            } catch (BinaryNode.Unexpected unexpected) {
+                leftIsNumeric = false;
+                boxedLeft = unexpected.value;
+            }
+        } else {
+            boxedLeft = operand(expr.left);
+        }
+        boolean rightIsNumeric = isSpecializedNumeric(expr.right);
+        if (rightIsNumeric) {
+            try {
+                right = evaluateDouble(expr.right);
+            } catch (BinaryNode.Unexpected unexpected) {
+                rightIsNumeric = false;
+                boxedRight = unexpected.value;
+            }
+        } else {
+            boxedRight = operand(expr.right);
+        }
+        if ((leftIsNumeric || boxedLeft instanceof Double) &&
+                (rightIsNumeric || boxedRight instanceof Double)) {
+            leftNumber = leftIsNumeric ? left : (double) boxedLeft;
+            rightNumber = rightIsNumeric ? right : (double) boxedRight;
+            return true;
+        }
+        leftValue = leftIsNumeric ? (Object) left : boxedLeft;
+        rightValue = rightIsNumeric ? (Object) right : boxedRight;
+        return false;
+    }
+
+    // Evaluates an operand of a specialized node. Variables, the usual
+    // operands, are read in place rather than through accept(), whose
+    // call site sees every kind of node.
+    private Object operand(Expr expr) {
+        if (expr instanceof Expr.Variable) return visitVariableExpr((Expr.Variable) expr);
+        return expr.accept(this);
+    }
+
+    static RuntimeError operandsError(Token operator) {
+        if (operator.type == TokenType.PLUS) {
+            return new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+        return new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             case STAR:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             case SLASH:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left / (double) right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -86,68 +346,191 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return (String) left + (String) right;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case GREATER:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             case BANG_EQUAL:
-                checkNumberOperand(expr.operator, right);
-                return !isEqual(left, right);
+                return !Values.isEqual(left, right);
             case EQUAL_EQUAL:
-                checkNumberOperand(expr.operator, right);
-                return isEqual(left, right);
+                return Values.isEqual(left, right);
         }
         return null;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
-        List<Object> args = new ArrayList<>();
-
-        for(Expr arg:expr.arguments){
-            args.add(evaluate(arg));
+        // o.m(...) and super.m(...) pass the receiver straight to the method
+        // rather than allocating a bound copy of it first.
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties");
+            }
+            LoxInstance instance = (LoxInstance) object;
+            InlineCache cache = InlineCache.of(get);
+            LoxFunction method = cache.method(instance, get.name);
+            if (method == null) {
+                return call(cache.get(instance, get.name), expr);
+            }
+            return invoke(method, instance, expr);
         }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            LoxFunction method = superMethod(callee);
+            return invoke(method, (LoxInstance) visitThisExpr(callee.receiver), expr);
+        }
+        return call(evaluate(expr.callee), expr);
+    }
+
+    // Arguments are evaluated before the callee is checked, as they always
+    // were, and up to three of them are passed without packing an array.
+    private Object call(Object callee, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return callable(callee, 0, expr).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return callable(callee, 1, expr).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return callable(callee, 2, expr).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return callable(callee, 3, expr).call3(this, a, b, c);
+            }
+            default: {
+                Object[] args = evaluateArguments(expr);
+                return callable(callee, args.length, expr).call(this, args);
+            }
+        }
+    }
+
+    static LoxCallable callable(Object callee, int count, Expr.Call expr) {
         if (!(callee instanceof LoxCallable)){
             throw new RuntimeError(expr.paren,
                     "Can only call functions and classes");
         }
-
         LoxCallable function = (LoxCallable) callee;
-        if (args.size()!=function.arity()){
-            throw new RuntimeError(expr.paren,
+        checkArity(function, count, expr.paren);
+        return function;
+    }
+
+    private Object invoke(LoxFunction method, LoxInstance receiver, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                checkArity(method, 0, expr.paren);
+                return method.invoke0(this, receiver);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                checkArity(method, 1, expr.paren);
+                return method.invoke1(this, receiver, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(method, 2, expr.paren);
+                return method.invoke2(this, receiver, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(method, 3, expr.paren);
+                return method.invoke3(this, receiver, a, b, c);
+            }
+            default: {
+                Object[] args = evaluateArguments(expr);
+                checkArity(method, args.length, expr.paren);
+                return method.invoke(this, receiver, args);
+            }
+        }
+    }
+
+    // Evaluates a call in tail position up to the point of calling. Calls
+    // to Lox functions are left pending; see TAIL_CALL. Anything else is
+    // called right away.
+    private Object tailCall(Expr.Call expr) {
+        LoxFunction function;
+        LoxInstance receiver;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            if (!(object instanceof LoxInstance)) {
+                throw new RuntimeError(get.name, "Only instances have properties");
+            }
+            receiver = (LoxInstance) object;
+            InlineCache cache = InlineCache.of(get);
+            function = cache.method(receiver, get.name);
+            if (function == null) return call(cache.get(receiver, get.name), expr);
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            function = superMethod(callee);
+            receiver = (LoxInstance) visitThisExpr(callee.receiver);
+        } else {
+            Object callee = evaluate(expr.callee);
+            if (!(callee instanceof LoxFunction) || ((LoxFunction) callee).isUnboundMethod()) {
+                return call(callee, expr);
+            }
+            function = (LoxFunction) callee;
+            receiver = function.receiver;
+        }
+        Object[] args = evaluateArguments(expr);
+        checkArity(function, args.length, expr.paren);
+        return deferCall(function, receiver, args);
+    }
+
+    Object deferCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArguments = arguments;
+        return TAIL_CALL;
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] args = new Object[expr.arguments.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = evaluate(expr.arguments.get(i));
+        }
+        return args;
+    }
+
+    static void checkArity(LoxCallable function, int count, Token paren) {
+        if (count!=function.arity()){
+            throw new RuntimeError(paren,
                     String.format("Expected %d arguments but got %d.",
                             function.arity(),
-                            args.size())
+                            count)
             );
         }
-        return function.call(this, args);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return InlineCache.of(expr).get((LoxInstance) object, expr.name);
         }
         throw new RuntimeError(expr.name, "Only instances have properties");
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
-        if (a == null) return false;
-        return a.equals(b);
-    }
-
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -162,9 +545,9 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitLogicalExpr(Expr.Logical expr) {
         Object left = evaluate(expr.left);
         if(expr.operator.type==TokenType.OR){
-            if(isTruthy(left))return left;
+            if(Values.isTruthy(left))return left;
         }else {
-            if(!isTruthy(left))return left;
+            if(!Values.isTruthy(left))return left;
         }
         return evaluate(expr.right);
     }
@@ -176,57 +559,70 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "Only instance have fields");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        InlineCache.of(expr).set((LoxInstance)object, expr.name, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int dist = locals.get(expr);
-        LoxClass superclass = (LoxClass) environment.getAt(
-                dist, "super"
-        );
-        LoxInstance object = (LoxInstance) environment.getAt(
-                dist-1, "this"
-        );
+        LoxInstance object = (LoxInstance) visitThisExpr(expr.receiver);
+        return superMethod(expr).bind(object);
+    }
+
+    private LoxFunction superMethod(Expr.Super expr) {
+        // Methods always capture "super", since it is declared around them.
+        LoxClass superclass = (LoxClass) environment.upvalues[expr.upvalue];
         LoxFunction method = superclass.findMethod(expr.method.lexeme);
         if (method == null) {
             throw new RuntimeError(expr.method,
-                    "Undefined property"+expr.method.lexeme+"'.");
+                    "Undefined property '"+expr.method.lexeme+"'.");
         }
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr){
-        return lookUpvariable(expr.keyword, expr);
+        if (expr.depth >= 0) return environment.getAt(expr.depth, expr.slot);
+        return environment.upvalues[expr.upvalue];
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (isNumeric(expr)) return evaluateDouble(expr);
         Object right = evaluate(expr.right);
         switch (expr.operator.type) {
             case MINUS:
                 checkNumberOperand(expr.operator, right);
                 return -(double) right;
             case BANG:
-                return !isTruthy(right);
+                return !Values.isTruthy(right);
         }
         return null;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpvariable(expr.name, expr);
+        Object value;
+        if(expr.depth >= 0){
+            value = environment.getAt(expr.depth, expr.slot);
+        } else if (expr.upvalue >= 0) {
+            value = environment.upvalues[expr.upvalue];
+        } else {
+            return readGlobal(expr);
+        }
+        return expr.boxed ? ((Cell) value).value : value;
     }
 
-    private Object lookUpvariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if(distance!=null){
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    Object readGlobal(Expr.Variable expr) {
+        Cell cell = expr.global;
+        if (cell == null) {
+            cell = globals.cell(expr.name.lexeme);
+            if (cell == null) {
+                throw new RuntimeError(expr.name, "Undefined variable: '"+expr.name.lexeme+"'.");
+            }
+            expr.global = cell;
         }
+        return cell.value;
     }
 
     private void checkNumberOperand(Token operator, Object operand) {
@@ -234,6 +630,11 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
 
     @Override
     public Object visitCommaExpr(Expr.Comma expr) {
@@ -243,33 +644,32 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
-        if (isTruthy(evaluate(expr.condition)))
+        if (Values.isTruthy(evaluate(expr.condition)))
             return evaluate(expr.then);
         return evaluate(expr.otherwise);
     }
 
-    private boolean isTruthy(Object object) {
-        if (object == null) return false;
-        if (object instanceof Boolean) return (boolean) object;
-        return true;
-    }
-
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) return executeBlock(stmt.statements, environment);
+        Environment frame = frames.push(environment, environment.upvalues, stmt.frameSize);
+        try {
+            return executeBlock(stmt.statements, frame);
+        } finally {
+            frames.pop();
+        }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -278,92 +678,121 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                         "Superclass must be a class");
             }
         }
-        environment.define(stmt.name.lexeme, null);
+        // A class its own methods capture lives in a cell from the start.
+        Cell cell = stmt.boxed ? new Cell(null) : null;
+        int slot = declare(stmt.name, cell);
 
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.define(superclass);
         }
         Map<String, LoxFunction> methods = new HashMap<>();
         for(Stmt.Function method:stmt.methods){
-            LoxFunction func = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction func = new LoxFunction(method, environment.capture(method),
+                    method.name.lexeme.equals("init"), null);
             methods.put(method.name.lexeme, func);
         }
         LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass,methods);
         if (superclass != null) {
             environment = environment.enclosing;
         }
-        environment.assign(stmt.name, klass);
-        return null;
+        if (environment == globals) {
+            globals.define(stmt.name.lexeme, klass);
+        } else if (cell != null) {
+            cell.value = klass;
+        } else {
+            environment.assignAt(0, slot, klass);
+        }
+        return Completion.NORMAL;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try{
             this.environment=environment;
             for(Stmt stmt:statements){
-                execute(stmt);
+                if (execute(stmt) == Completion.RETURN) return Completion.RETURN;
             }
+            return Completion.NORMAL;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.boxed) {
+            // Declared first, so a recursive function can capture its own cell.
+            Cell cell = new Cell(null);
+            declare(stmt.name, cell);
+            cell.value = new LoxFunction(stmt, environment.capture(stmt));
+            return Completion.NORMAL;
+        }
+        declare(stmt.name, new LoxFunction(stmt, environment.capture(stmt)));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))){
-            execute(stmt.thenBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (Values.isTruthy(evaluate(stmt.condition))){
+            return execute(stmt.thenBranch);
         }else if(stmt.elseBranch!=null){
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        System.out.println(stringify(evaluate(stmt.expression)));
-        return null;
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        System.out.println(Values.stringify(evaluate(stmt.expression)));
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value!=null) value = evaluate(stmt.value);
-        throw new Return(value);
+        if (stmt.tailCall) {
+            value = tailCall((Expr.Call) stmt.value);
+        } else if (stmt.value!=null) {
+            value = evaluate(stmt.value);
+        }
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if(stmt.initializer!=null){
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        declare(stmt.name, stmt.boxed ? new Cell(value) : value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))){
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (Values.isTruthy(evaluate(stmt.condition))){
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+            if (jit != null && running != null) jit.countBackEdge(running);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
-    public void resolve(Expr expr, int i) {
-        locals.put(expr, i);
+    // Top-level declarations go into the globals by name; everything else
+    // takes the next slot of the current frame. Returns that slot, or -1.
+    private int declare(Token name, Object value) {
+        if (environment == globals) {
+            globals.define(name.lexeme, value);
+            return -1;
+        }
+        return environment.define(value);
     }
+
 }
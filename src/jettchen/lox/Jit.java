@@ -0,0 +1,60 @@
+package jettchen.lox;
+
+import java.lang.invoke.MethodHandles;
+
+// The tiering policy for --jit. Functions start out interpreted; calls
+// and loop back edges count towards a threshold, and the next call after
+// it is reached compiles the function to a hidden class. A function the
+// compiler can't handle is marked and stays interpreted. Loops are not
+// replaced while they run, so a hot loop pays off from the next call on.
+class Jit {
+    static final int DEFAULT_THRESHOLD = 1000;
+
+    private final int threshold;
+    private final boolean log;
+
+    Jit(int threshold, boolean log) {
+        this.threshold = threshold;
+        this.log = log;
+    }
+
+    void countCall(Stmt.Function function, boolean isMethod, boolean isInitializer) {
+        if (function.jitFailed) return;
+        if (++function.hotness >= threshold) compile(function, isMethod, isInitializer);
+    }
+
+    void countBackEdge(Stmt.Function function) {
+        if (function.hotness < threshold) function.hotness++;
+    }
+
+    private void compile(Stmt.Function function, boolean isMethod, boolean isInitializer) {
+        String name = function.name.lexeme;
+        long start = System.nanoTime();
+        try {
+            JitCompiler compiler = new JitCompiler(function, isMethod, isInitializer,
+                    "jettchen/lox/Jit$" + name);
+            byte[] bytes = compiler.compile();
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, compiler.constants(), true);
+            function.code = (JitCode) lookup.lookupClass()
+                    .getDeclaredConstructor().newInstance();
+            if (log) {
+                System.err.printf("[jit] compiled %s (line %d) to %d bytes in %.2f ms%n",
+                        name, function.name.line, bytes.length,
+                        (System.nanoTime() - start) / 1e6);
+            }
+        } catch (JitCompiler.Unsupported e) {
+            function.jitFailed = true;
+            if (log) {
+                System.err.printf("[jit] %s (line %d) stays interpreted: %s%n",
+                        name, function.name.line, e.getMessage());
+            }
+        } catch (ReflectiveOperationException | LinkageError e) {
+            function.jitFailed = true;
+            if (log) {
+                System.err.printf("[jit] %s (line %d) failed to load: %s%n",
+                        name, function.name.line, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package jettchen.lox;
+
+// The compiled body of a function. The JIT generates one subclass per
+// function, overriding the entry point that matches its arity: invoke0
+// to invoke3, or invoke for anything longer. Methods get their receiver
+// as self; plain functions get null.
+abstract class JitCode {
+    Object invoke(Interpreter interpreter, Object[] upvalues, LoxInstance self,
+                  Object[] arguments) {
+        throw new IllegalStateException("wrong arity for compiled code");
+    }
+
+    Object invoke0(Interpreter interpreter, Object[] upvalues, LoxInstance self) {
+        throw new IllegalStateException("wrong arity for compiled code");
+    }
+
+    Object invoke1(Interpreter interpreter, Object[] upvalues, LoxInstance self,
+                   Object a) {
+        throw new IllegalStateException("wrong arity for compiled code");
+    }
+
+    Object invoke2(Interpreter interpreter, Object[] upvalues, LoxInstance self,
+                   Object a, Object b) {
+        throw new IllegalStateException("wrong arity for compiled code");
+    }
+
+    Object invoke3(Interpreter interpreter, Object[] upvalues, LoxInstance self,
+                   Object a, Object b, Object c) {
+        throw new IllegalStateException("wrong arity for compiled code");
+    }
+
+    // Calls whichever entry point fits the number of arguments.
+    final Object invokeAny(Interpreter interpreter, Object[] upvalues, LoxInstance self,
+                           Object[] arguments) {
+        switch (arguments.length) {
+            case 0: return invoke0(interpreter, upvalues, self);
+            case 1: return invoke1(interpreter, upvalues, self, arguments[0]);
+            case 2: return invoke2(interpreter, upvalues, self, arguments[0], arguments[1]);
+            case 3: return invoke3(interpreter, upvalues, self, arguments[0], arguments[1],
+                    arguments[2]);
+            default: return invoke(interpreter, upvalues, self, arguments);
+        }
+    }
+}
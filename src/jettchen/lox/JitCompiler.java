@@ -0,0 +1,702 @@
+package jettchen.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jettchen.lox.ClassFile.*;
+
+// Translates one resolved function into a JitCode subclass. Lox locals of
+// the function and its blocks become JVM locals, variables from enclosing
+// functions are read from the closure's upvalues, and everything with nontrivial
+// semantics goes through JitRuntime. Node and token references that the
+// helpers need are passed to the class as class data and kept in static
+// final fields, so HotSpot sees them as constants.
+//
+// Functions that declare nested functions or classes are left to the
+// interpreter, since those would capture locals that only live in JVM
+// locals here.
+//
+// Locals that can only hold numbers live unboxed in pairs of double JVM
+// locals, and arithmetic and comparisons on them never touch a Double.
+// They are boxed only where they flow into something else.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String RUNTIME = "jettchen/lox/JitRuntime";
+    private static final String INTERPRETER = "jettchen/lox/Interpreter";
+    private static final String VALUES = "jettchen/lox/Values";
+    private static final String JIT_CODE = "jettchen/lox/JitCode";
+    private static final String ENTRY_PREFIX =
+            "(Ljettchen/lox/Interpreter;[Ljava/lang/Object;Ljettchen/lox/LoxInstance;";
+
+    // JVM locals of every entry point: the receiver of the compiled method
+    // itself, then its parameters. Lox parameters follow.
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int UPVALUES_LOCAL = 2;
+    private static final int SELF_LOCAL = 3;
+    private static final int ARGUMENTS_LOCAL = 4;
+
+    private final Stmt.Function function;
+    private final boolean isMethod;
+    private final boolean isInitializer;
+    private final String className;
+
+    private final ClassFile file = new ClassFile();
+    private final ClassFile.Code code = new ClassFile.Code(file);
+    private final List<Object> constants = new ArrayList<>();
+    private final List<String> constantTypes = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+
+    // For each Lox scope inside the function, innermost last: the JVM local
+    // of its slot 0 and how many of its slots are declared so far. The
+    // function's own scope comes first and maps through functionLocal().
+    private final List<Integer> scopeBases = new ArrayList<>();
+    private final List<Integer> scopeDefined = new ArrayList<>();
+    private int parameterBase;
+    private int nextLocal;
+
+    private NumericLocals numbers;
+    private final Map<Stmt.Var, Integer> doubleLocals = new IdentityHashMap<>();
+
+    JitCompiler(Stmt.Function function, boolean isMethod, boolean isInitializer,
+                String className) {
+        this.function = function;
+        this.isMethod = isMethod;
+        this.isInitializer = isInitializer;
+        this.className = className;
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    byte[] compile() {
+        int arity = function.params.size();
+        int receiverSlots = isMethod ? 1 : 0;
+        parameterBase = arity <= 3 ? ARGUMENTS_LOCAL : ARGUMENTS_LOCAL + 1;
+        nextLocal = parameterBase + function.frameSize - receiverSlots;
+        code.maxLocals = nextLocal;
+        numbers = new NumericLocals(function, isMethod);
+
+        if (arity > 3) {
+            for (int i = 0; i < arity; i++) {
+                code.load(ARGUMENTS_LOCAL);
+                code.pushInt(i);
+                code.op(AALOAD, -1);
+                code.store(parameterBase + i);
+            }
+        }
+        for (int slot = receiverSlots + arity; slot < function.frameSize; slot++) {
+            code.op(ACONST_NULL, 1);
+            code.store(functionLocal(slot));
+        }
+
+        scopeBases.add(-1);
+        scopeDefined.add(receiverSlots + arity);
+        for (Stmt stmt : function.body) {
+            stmt.accept(this);
+        }
+        emitReturn(null);
+
+        String entry;
+        String descriptor;
+        if (arity <= 3) {
+            entry = "invoke" + arity;
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < arity; i++) params.append(OBJECT);
+            descriptor = ENTRY_PREFIX + params + ")" + OBJECT;
+        } else {
+            entry = "invoke";
+            descriptor = ENTRY_PREFIX + "[" + OBJECT + ")" + OBJECT;
+        }
+        file.method(0, entry, descriptor, code);
+        emitConstructor();
+        emitConstants();
+        return file.toBytes(ACC_FINAL | ACC_SUPER, className, JIT_CODE);
+    }
+
+    private void emitConstructor() {
+        ClassFile.Code init = new ClassFile.Code(file);
+        init.load(0);
+        init.invoke(INVOKESPECIAL, JIT_CODE, "<init>", "()V");
+        init.op(RETURN, 0);
+        file.method(0, "<init>", "()V", init);
+    }
+
+    // The class initializer copies the class data into the constant fields.
+    private void emitConstants() {
+        ClassFile.Code clinit = new ClassFile.Code(file);
+        clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup",
+                "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.op2(LDC_W, file.string("_"), 1);
+        clinit.op2(LDC_W, file.classRef("[" + OBJECT), 1);
+        clinit.invoke(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)"
+                        + OBJECT);
+        clinit.op2(CHECKCAST, file.classRef("[" + OBJECT), 0);
+        clinit.store(0);
+        for (int i = 0; i < constants.size(); i++) {
+            String type = constantTypes.get(i);
+            file.field(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, "k" + i, type);
+            clinit.load(0);
+            clinit.pushInt(i);
+            clinit.op(AALOAD, -1);
+            clinit.op2(CHECKCAST, file.classRef(type.substring(1, type.length() - 1)), 0);
+            clinit.putStatic(className, "k" + i, type);
+        }
+        clinit.op(RETURN, 0);
+        file.method(ACC_STATIC, "<clinit>", "()V", clinit);
+    }
+
+    private void constant(Object value, Class<?> type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantTypes.add("L" + type.getName().replace('.', '/') + ";");
+            constantIndex.put(value, index);
+        }
+        code.getStatic(className, "k" + index, constantTypes.get(index));
+    }
+
+    private int functionLocal(int slot) {
+        if (!isMethod) return parameterBase + slot;
+        return slot == 0 ? SELF_LOCAL : parameterBase + slot - 1;
+    }
+
+    // The JVM local for a resolved local variable. None of them is ever
+    // boxed, since nothing compiled declares a closure that could capture
+    // one.
+    private int local(int depth, int slot) {
+        int scope = scopeBases.size() - 1 - depth;
+        if (scope == 0) return functionLocal(slot);
+        return scopeBases.get(scope) + slot;
+    }
+
+    private void loadUpvalue(int index, boolean boxed) {
+        code.load(UPVALUES_LOCAL);
+        code.pushInt(index);
+        code.op(AALOAD, -1);
+        if (boxed) code.invoke(INVOKESTATIC, RUNTIME, "cellValue", "(" + OBJECT + ")" + OBJECT);
+    }
+
+    private void emitReturn(Expr value) {
+        if (isInitializer) {
+            code.load(SELF_LOCAL);
+        } else if (value != null) {
+            value.accept(this);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.op(ARETURN, -1);
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, "java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+    }
+
+    private void boxDouble() {
+        code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    private int doubleLocal(Expr expr) {
+        return doubleLocals.get(numbers.numericLocal(expr));
+    }
+
+    // Leaves the value of an expression that isNumber() on the stack as a
+    // double.
+    private void emitDouble(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            code.pushDouble((double) ((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            emitDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Variable && numbers.numericLocal(expr) != null) {
+            code.loadDouble(doubleLocal(expr));
+        } else if (expr instanceof Expr.Assign && numbers.numericLocal(expr) != null) {
+            emitDouble(((Expr.Assign) expr).value);
+            code.op(DUP2, 2);
+            code.storeDouble(doubleLocal(expr));
+        } else if (expr instanceof Expr.Unary && numbers.isNumber(((Expr.Unary) expr).right)) {
+            emitDouble(((Expr.Unary) expr).right);
+            code.op(DNEG, 0);
+        } else if (expr instanceof Expr.Binary && hasNumberOperand((Expr.Binary) expr)) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            numberOperands(binary);
+            switch (binary.operator.type) {
+                case PLUS: code.op(DADD, -2); break;
+                case MINUS: code.op(DSUB, -2); break;
+                case STAR: code.op(DMUL, -2); break;
+                default: code.op(DDIV, -2); break;
+            }
+        } else {
+            // The boxed result is known to be a Double.
+            expr.accept(this);
+            code.op2(CHECKCAST, file.classRef("java/lang/Double"), 0);
+            code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+        }
+    }
+
+    private boolean hasNumberOperand(Expr.Binary expr) {
+        return numbers.isNumber(expr.left) || numbers.isNumber(expr.right);
+    }
+
+    // Leaves both operands of a numeric operator as doubles, when at least
+    // one of them isNumber(). The other one is checked only once both are
+    // evaluated, as in the interpreter.
+    private void numberOperands(Expr.Binary expr) {
+        boolean left = numbers.isNumber(expr.left);
+        boolean right = numbers.isNumber(expr.right);
+        if (left) {
+            emitDouble(expr.left);
+        } else {
+            expr.left.accept(this);
+        }
+        if (right) {
+            emitDouble(expr.right);
+        } else {
+            expr.right.accept(this);
+            unboxOperand(expr.operator);
+            return;
+        }
+        if (!left) {
+            // Move the boxed left operand on top, unbox it and swap back.
+            code.op(DUP2_X1, 2);
+            code.op(POP2, -2);
+            unboxOperand(expr.operator);
+            code.op(DUP2_X2, 2);
+            code.op(POP2, -2);
+        }
+    }
+
+    private void unboxOperand(Token operator) {
+        constant(operator, Token.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "number", "(" + OBJECT + "Ljettchen/lox/Token;)D");
+    }
+
+    // Leaves the truthiness of the expression on the stack as an int,
+    // skipping the Boolean for comparisons and negations.
+    private void condition(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            condition(((Expr.Grouping) expr).expression);
+            return;
+        }
+        if (expr instanceof Expr.Unary && ((Expr.Unary) expr).operator.type == TokenType.BANG) {
+            condition(((Expr.Unary) expr).right);
+            code.pushInt(1);
+            code.op(IXOR, -1);
+            return;
+        }
+        if (expr instanceof Expr.Binary && test((Expr.Binary) expr)) return;
+        expr.accept(this);
+        code.invoke(INVOKESTATIC, VALUES, "isTruthy", "(" + OBJECT + ")Z");
+    }
+
+    // Emits comparisons and equality as an int; false for other operators.
+    private boolean test(Expr.Binary expr) {
+        String helper;
+        switch (expr.operator.type) {
+            case GREATER: helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            case LESS: helper = "less"; break;
+            case LESS_EQUAL: helper = "lessEqual"; break;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                expr.left.accept(this);
+                expr.right.accept(this);
+                code.invoke(INVOKESTATIC, VALUES, "isEqual", "(" + OBJECT + OBJECT + ")Z");
+                if (expr.operator.type == TokenType.BANG_EQUAL) {
+                    code.pushInt(1);
+                    code.op(IXOR, -1);
+                }
+                return true;
+            default:
+                return false;
+        }
+        if (hasNumberOperand(expr)) {
+            numberOperands(expr);
+            code.invoke(INVOKESTATIC, RUNTIME, helper, "(DD)Z");
+            return true;
+        }
+        expr.left.accept(this);
+        expr.right.accept(this);
+        constant(expr.operator, Token.class);
+        code.invoke(INVOKESTATIC, RUNTIME, helper,
+                "(" + OBJECT + OBJECT + "Ljettchen/lox/Token;)Z");
+        return true;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (numbers.numericLocal(expr) != null) {
+            emitDouble(expr);
+            boxDouble();
+            return null;
+        }
+        expr.value.accept(this);
+        code.op(DUP, 1);
+        if (expr.depth >= 0) {
+            code.store(local(expr.depth, expr.slot));
+        } else if (expr.upvalue >= 0) {
+            loadUpvalue(expr.upvalue, false);
+            code.invoke(INVOKESTATIC, RUNTIME, "setCell", "(" + OBJECT + OBJECT + ")V");
+        } else {
+            code.load(INTERPRETER_LOCAL);
+            constant(expr, Expr.Assign.class);
+            code.invoke(INVOKESTATIC, RUNTIME, "assignGlobal",
+                    "(" + OBJECT + "L" + INTERPRETER + ";Ljettchen/lox/Expr$Assign;)V");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        String helper;
+        switch (expr.operator.type) {
+            case PLUS: helper = "add"; break;
+            case MINUS: helper = "subtract"; break;
+            case STAR: helper = "multiply"; break;
+            case SLASH: helper = "divide"; break;
+            default:
+                if (!test(expr)) throw new Unsupported("operator " + expr.operator.lexeme);
+                box();
+                return null;
+        }
+        if (hasNumberOperand(expr)) {
+            emitDouble(expr);
+            boxDouble();
+            return null;
+        }
+        expr.left.accept(this);
+        expr.right.accept(this);
+        constant(expr.operator, Token.class);
+        code.invoke(INVOKESTATIC, RUNTIME, helper,
+                "(" + OBJECT + OBJECT + "Ljettchen/lox/Token;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // A call in tail position goes to JitRuntime.tailCall or tailInvoke,
+    // always with its arguments in an array.
+    private void call(Expr.Call expr, boolean tail) {
+        int count = expr.arguments.size();
+        String kind;
+        String prefix;
+        code.load(INTERPRETER_LOCAL);
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            get.object.accept(this);
+            code.op(DUP, 1);
+            constant(get, Expr.Get.class);
+            code.invoke(INVOKESTATIC, RUNTIME, "callee",
+                    "(" + OBJECT + "Ljettchen/lox/Expr$Get;)" + OBJECT);
+            kind = "invoke";
+            prefix = "L" + INTERPRETER + ";" + OBJECT + OBJECT;
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee;
+            visitThisExpr(callee.receiver);
+            loadUpvalue(callee.upvalue, false);
+            constant(callee, Expr.Super.class);
+            code.invoke(INVOKESTATIC, RUNTIME, "superMethod",
+                    "(" + OBJECT + "Ljettchen/lox/Expr$Super;)" + OBJECT);
+            kind = "invoke";
+            prefix = "L" + INTERPRETER + ";" + OBJECT + OBJECT;
+        } else {
+            expr.callee.accept(this);
+            kind = "call";
+            prefix = "L" + INTERPRETER + ";" + OBJECT;
+        }
+
+        if (tail) kind = kind.equals("call") ? "tailCall" : "tailInvoke";
+        StringBuilder descriptor = new StringBuilder("(").append(prefix);
+        if (count <= 3 && !tail) {
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+                descriptor.append(OBJECT);
+            }
+            kind += count;
+        } else {
+            code.pushInt(count);
+            code.op2(ANEWARRAY, file.classRef("java/lang/Object"), 0);
+            for (int i = 0; i < count; i++) {
+                code.op(DUP, 1);
+                code.pushInt(i);
+                expr.arguments.get(i).accept(this);
+                code.op(AASTORE, -3);
+            }
+            descriptor.append("[").append(OBJECT);
+        }
+        constant(expr, Expr.Call.class);
+        descriptor.append("Ljettchen/lox/Expr$Call;)").append(OBJECT);
+        code.invoke(INVOKESTATIC, RUNTIME, kind, descriptor.toString());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        constant(expr, Expr.Get.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "get",
+                "(" + OBJECT + "Ljettchen/lox/Expr$Get;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (value instanceof Boolean) {
+            code.getStatic("java/lang/Boolean", (Boolean) value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else {
+            constant(value, value.getClass());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        code.op(DUP, 1);
+        code.invoke(INVOKESTATIC, VALUES, "isTruthy", "(" + OBJECT + ")Z");
+        int end = code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, -1);
+        code.op(POP, -1);
+        expr.right.accept(this);
+        code.patch(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        code.op(DUP, 1);
+        constant(expr, Expr.Set.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "checkSettable",
+                "(" + OBJECT + "Ljettchen/lox/Expr$Set;)V");
+        expr.value.accept(this);
+        constant(expr, Expr.Set.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "set",
+                "(" + OBJECT + OBJECT + "Ljettchen/lox/Expr$Set;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        loadUpvalue(expr.upvalue, false);
+        visitThisExpr(expr.receiver);
+        constant(expr, Expr.Super.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "bindSuper",
+                "(" + OBJECT + OBJECT + "Ljettchen/lox/Expr$Super;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        if (expr.depth >= 0) {
+            code.load(local(expr.depth, expr.slot));
+        } else {
+            loadUpvalue(expr.upvalue, false);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            condition(expr);
+            box();
+            return null;
+        }
+        if (numbers.isNumber(expr.right)) {
+            emitDouble(expr);
+            boxDouble();
+            return null;
+        }
+        expr.right.accept(this);
+        constant(expr.operator, Token.class);
+        code.invoke(INVOKESTATIC, RUNTIME, "negate",
+                "(" + OBJECT + "Ljettchen/lox/Token;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (numbers.numericLocal(expr) != null) {
+            code.loadDouble(doubleLocal(expr));
+            boxDouble();
+            return null;
+        }
+        if (expr.depth >= 0) {
+            code.load(local(expr.depth, expr.slot));
+            return null;
+        }
+        if (expr.upvalue >= 0) {
+            loadUpvalue(expr.upvalue, expr.boxed);
+            return null;
+        }
+        code.load(INTERPRETER_LOCAL);
+        constant(expr, Expr.Variable.class);
+        code.invoke(INVOKEVIRTUAL, INTERPRETER, "readGlobal",
+                "(Ljettchen/lox/Expr$Variable;)" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitCommaExpr(Expr.Comma expr) {
+        expr.left.accept(this);
+        code.op(POP, -1);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        condition(expr.condition);
+        int otherwise = code.jump(IFEQ, -1);
+        expr.then.accept(this);
+        int end = code.jump(GOTO, 0);
+        // The else branch starts from the stack as it was before "then".
+        code.stack--;
+        code.patch(otherwise);
+        expr.otherwise.accept(this);
+        code.patch(end);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.frameSize == 0) {
+            for (Stmt statement : stmt.statements) {
+                statement.accept(this);
+            }
+            return null;
+        }
+        int base = nextLocal;
+        nextLocal += stmt.frameSize;
+        for (int slot = 0; slot < stmt.frameSize; slot++) {
+            code.op(ACONST_NULL, 1);
+            code.store(base + slot);
+        }
+        scopeBases.add(base);
+        scopeDefined.add(0);
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        scopeBases.remove(scopeBases.size() - 1);
+        scopeDefined.remove(scopeDefined.size() - 1);
+        nextLocal = base;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported("declares class " + stmt.name.lexeme);
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign &&
+                numbers.numericLocal(stmt.expression) != null) {
+            // No need to box a value nobody reads.
+            Expr.Assign assign = (Expr.Assign) stmt.expression;
+            emitDouble(assign.value);
+            code.storeDouble(doubleLocal(assign));
+            return null;
+        }
+        stmt.expression.accept(this);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("declares function " + stmt.name.lexeme);
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        condition(stmt.condition);
+        int otherwise = code.jump(IFEQ, -1);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            code.patch(otherwise);
+            return null;
+        }
+        int end = code.jump(GOTO, 0);
+        code.patch(otherwise);
+        stmt.elseBranch.accept(this);
+        code.patch(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        code.invoke(INVOKESTATIC, RUNTIME, "print", "(" + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall && !isInitializer) {
+            call((Expr.Call) stmt.value, true);
+            code.op(ARETURN, -1);
+            return null;
+        }
+        emitReturn(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        int scope = scopeDefined.size() - 1;
+        int slot = scopeDefined.get(scope);
+        scopeDefined.set(scope, slot + 1);
+        if (numbers.isNumeric(stmt)) {
+            // The object slot the Resolver gave it stays unused.
+            int local = nextLocal;
+            nextLocal += 2;
+            doubleLocals.put(stmt, local);
+            emitDouble(stmt.initializer);
+            code.storeDouble(local);
+            return null;
+        }
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        code.store(local(0, slot));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int start = code.length;
+        condition(stmt.condition);
+        int exit = code.jump(IFEQ, -1);
+        stmt.body.accept(this);
+        code.jumpBack(GOTO, start, 0);
+        code.patch(exit);
+        return null;
+    }
+}
@@ -0,0 +1,238 @@
+package jettchen.lox;
+
+// Static helpers that compiled code calls for everything it doesn't
+// inline. They are small enough for HotSpot to inline in turn, and they
+// report errors against the same tokens the interpreter would.
+class JitRuntime {
+    private JitRuntime() {
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String) left + (String) right;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left - (double) right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left * (double) right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left / (double) right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left > (double) right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left >= (double) right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left < (double) right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left <= (double) right;
+    }
+
+    // The double forms are for numeric locals, which the JIT keeps
+    // unboxed; see NumericLocals.
+    static boolean greater(double left, double right) {
+        return left > right;
+    }
+
+    static boolean greaterEqual(double left, double right) {
+        return left >= right;
+    }
+
+    static boolean less(double left, double right) {
+        return left < right;
+    }
+
+    static boolean lessEqual(double left, double right) {
+        return left <= right;
+    }
+
+    // Unboxes the operand of a numeric operator whose other operand is
+    // already a double. Compiled code calls this only after evaluating
+    // both, so errors come out in the same order as in the interpreter.
+    static double number(Object operand, Token operator) {
+        if (operand instanceof Double) return (double) operand;
+        throw Interpreter.operandsError(operator);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double) right;
+    }
+
+    private static void checkNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static Object cellValue(Object cell) {
+        return ((Cell) cell).value;
+    }
+
+    // Captured variables that are assigned always live in cells.
+    static void setCell(Object value, Object cell) {
+        ((Cell) cell).value = value;
+    }
+
+    static void assignGlobal(Object value, Interpreter interpreter, Expr.Assign expr) {
+        interpreter.assignGlobal(expr, value);
+    }
+
+    static void print(Object value) {
+        System.out.println(Values.stringify(value));
+    }
+
+    static Object get(Object object, Expr.Get expr) {
+        if (object instanceof LoxInstance) {
+            return InlineCache.of(expr).get((LoxInstance) object, expr.name);
+        }
+        throw new RuntimeError(expr.name, "Only instances have properties");
+    }
+
+    static void checkSettable(Object object, Expr.Set expr) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instance have fields");
+        }
+    }
+
+    static Object set(Object object, Object value, Expr.Set expr) {
+        InlineCache.of(expr).set((LoxInstance) object, expr.name, value);
+        return value;
+    }
+
+    // The callee for o.m(...): the unbound method, which the invoke helpers
+    // then call with o as its receiver, or the value of a field named m.
+    static Object callee(Object object, Expr.Get expr) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(expr.name, "Only instances have properties");
+        }
+        LoxInstance instance = (LoxInstance) object;
+        InlineCache cache = InlineCache.of(expr);
+        LoxFunction method = cache.method(instance, expr.name);
+        if (method == null) return cache.get(instance, expr.name);
+        return method;
+    }
+
+    static Object superMethod(Object superclass, Expr.Super expr) {
+        LoxFunction method = ((LoxClass) superclass).findMethod(expr.method.lexeme);
+        if (method == null) {
+            throw new RuntimeError(expr.method,
+                    "Undefined property '"+expr.method.lexeme+"'.");
+        }
+        return method;
+    }
+
+    static Object bindSuper(Object superclass, Object self, Expr.Super expr) {
+        return ((LoxFunction) superMethod(superclass, expr)).bind((LoxInstance) self);
+    }
+
+    static Object call0(Interpreter interpreter, Object callee, Expr.Call expr) {
+        return Interpreter.callable(callee, 0, expr).call0(interpreter);
+    }
+
+    static Object call1(Interpreter interpreter, Object callee, Object a, Expr.Call expr) {
+        return Interpreter.callable(callee, 1, expr).call1(interpreter, a);
+    }
+
+    static Object call2(Interpreter interpreter, Object callee, Object a, Object b,
+                        Expr.Call expr) {
+        return Interpreter.callable(callee, 2, expr).call2(interpreter, a, b);
+    }
+
+    static Object call3(Interpreter interpreter, Object callee, Object a, Object b, Object c,
+                        Expr.Call expr) {
+        return Interpreter.callable(callee, 3, expr).call3(interpreter, a, b, c);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Object[] arguments,
+                       Expr.Call expr) {
+        return Interpreter.callable(callee, arguments.length, expr).call(interpreter, arguments);
+    }
+
+    static Object invoke0(Interpreter interpreter, Object receiver, Object callee,
+                          Expr.Call expr) {
+        LoxFunction method = unbound(callee, 0, expr);
+        if (method == null) return call0(interpreter, callee, expr);
+        return method.invoke0(interpreter, (LoxInstance) receiver);
+    }
+
+    static Object invoke1(Interpreter interpreter, Object receiver, Object callee, Object a,
+                          Expr.Call expr) {
+        LoxFunction method = unbound(callee, 1, expr);
+        if (method == null) return call1(interpreter, callee, a, expr);
+        return method.invoke1(interpreter, (LoxInstance) receiver, a);
+    }
+
+    static Object invoke2(Interpreter interpreter, Object receiver, Object callee, Object a,
+                          Object b, Expr.Call expr) {
+        LoxFunction method = unbound(callee, 2, expr);
+        if (method == null) return call2(interpreter, callee, a, b, expr);
+        return method.invoke2(interpreter, (LoxInstance) receiver, a, b);
+    }
+
+    static Object invoke3(Interpreter interpreter, Object receiver, Object callee, Object a,
+                          Object b, Object c, Expr.Call expr) {
+        LoxFunction method = unbound(callee, 3, expr);
+        if (method == null) return call3(interpreter, callee, a, b, c, expr);
+        return method.invoke3(interpreter, (LoxInstance) receiver, a, b, c);
+    }
+
+    static Object invoke(Interpreter interpreter, Object receiver, Object callee,
+                         Object[] arguments, Expr.Call expr) {
+        LoxFunction method = unbound(callee, arguments.length, expr);
+        if (method == null) return call(interpreter, callee, arguments, expr);
+        return method.invoke(interpreter, (LoxInstance) receiver, arguments);
+    }
+
+    // Calls in tail position. One to a Lox function is left for
+    // LoxFunction to make; see Interpreter.TAIL_CALL.
+    static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments,
+                           Expr.Call expr) {
+        if (!(callee instanceof LoxFunction) || ((LoxFunction) callee).isUnboundMethod()) {
+            return call(interpreter, callee, arguments, expr);
+        }
+        LoxFunction function = (LoxFunction) callee;
+        Interpreter.checkArity(function, arguments.length, expr.paren);
+        return interpreter.deferCall(function, function.receiver, arguments);
+    }
+
+    static Object tailInvoke(Interpreter interpreter, Object receiver, Object callee,
+                             Object[] arguments, Expr.Call expr) {
+        LoxFunction method = unbound(callee, arguments.length, expr);
+        if (method == null) return tailCall(interpreter, callee, arguments, expr);
+        return interpreter.deferCall(method, (LoxInstance) receiver, arguments);
+    }
+
+    private static LoxFunction unbound(Object callee, int count, Expr.Call expr) {
+        if (!(callee instanceof LoxFunction)) return null;
+        LoxFunction function = (LoxFunction) callee;
+        if (!function.isUnboundMethod()) return null;
+        Interpreter.checkArity(function, count, expr.paren);
+        return function;
+    }
+}
@@ -0,0 +1,115 @@
+package jettchen.lox;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+// Ahead-of-time compiler: turns a script into an executable jar holding the
+// script's VM bytecode and the jlox runtime classes, with LoxLauncher as
+// its main class. Running the jar behaves like `jlox --engine=vm script`.
+public class Jloxc {
+    private static final String PACKAGE = "jettchen/lox/";
+    // The VM and its object model, the launcher and what they report
+    // errors and print values through.
+    private static final Set<String> RUNTIME = Set.of(
+            "LoxLauncher", "ScriptImage", "VM", "Chunk", "OpCode", "Symbols",
+            "ObjBoundMethod", "ObjClass", "ObjClosure", "ObjFunction", "ObjInstance",
+            "ObjNative", "ObjUpvalue", "Values", "RuntimeError", "Token", "TokenType", "Lox");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: jloxc script [output.jar]");
+            System.exit(64);
+        }
+        String path = args[0];
+        String output = args.length == 2 ? args[1] : jarName(path);
+
+        List<Stmt> stmts = Lox.parse(Lox.readSource(path));
+        if (Lox.hadError) System.exit(65);
+        VM vm = new VM();
+        ObjFunction script = new Compiler(vm).compile(stmts);
+        if (Lox.hadError) System.exit(65);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, LoxLauncher.class.getName());
+        try (JarOutputStream jar = new JarOutputStream(new FileOutputStream(output), manifest)) {
+            copyRuntime(jar);
+            jar.putNextEntry(new JarEntry(PACKAGE + LoxLauncher.IMAGE));
+            DataOutputStream out = new DataOutputStream(jar);
+            ScriptImage.write(out, vm, script);
+            out.flush();
+            jar.closeEntry();
+        }
+    }
+
+    // The script's path with its extension, whatever it is, replaced by
+    // .jar: foo.jlox gives foo.jar.
+    private static String jarName(String script) {
+        int dot = script.lastIndexOf('.');
+        int slash = Math.max(script.lastIndexOf('/'), script.lastIndexOf(File.separatorChar));
+        return (dot > slash + 1 ? script.substring(0, dot) : script) + ".jar";
+    }
+
+    // Copies the classes the VM needs at run time, with their nested
+    // classes, from wherever this class was loaded, a class directory or a
+    // jar. The front end, the tree-walker and the JIT stay behind.
+    private static void copyRuntime(JarOutputStream jar) throws IOException {
+        Path location;
+        try {
+            location = Paths.get(Jloxc.class.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("cannot locate the jlox runtime", e);
+        }
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.list(location.resolve(PACKAGE))) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!isRuntime(name)) continue;
+                    jar.putNextEntry(new JarEntry(PACKAGE + name));
+                    Files.copy(file, jar);
+                    jar.closeEntry();
+                }
+            }
+            return;
+        }
+        try (JarFile runtime = new JarFile(location.toFile())) {
+            Enumeration<JarEntry> entries = runtime.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.startsWith(PACKAGE) || !isRuntime(name.substring(PACKAGE.length()))) {
+                    continue;
+                }
+                jar.putNextEntry(new JarEntry(name));
+                try (InputStream in = runtime.getInputStream(entry)) {
+                    in.transferTo(jar);
+                }
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static boolean isRuntime(String fileName) {
+        if (!fileName.endsWith(".class")) return false;
+        String name = fileName.substring(0, fileName.length() - ".class".length());
+        int nested = name.indexOf('$');
+        return RUNTIME.contains(nested < 0 ? name : name.substring(0, nested));
+    }
+}
@@ -3,9 +3,10 @@ package jettchen.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 import jettchen.lox.AstPrinter;
@@ -14,21 +15,84 @@ public class Lox {
     static boolean hadError = false;
     static boolean hadRuntimeError;
 
-    public static final Interpreter interpreter = new Interpreter();
+    enum Engine {
+        TREE,
+        VM,
+        CLOSURE
+    }
+
+    static Engine engine = Engine.TREE;
+    static boolean icStats = false;
+    static boolean parallelLex = false;
+
+    // Created by main() rather than here, so the VM runtime that jloxc
+    // packs into a jar can use this class without the tree-walker.
+    private static Interpreter interpreter;
+    private static VM vm;
+    private static ClosureCompiler closureCompiler;
 
     public static void main(String[] args) throws IOException{
-        if (args.length > 1){
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        interpreter = new Interpreter();
+        String script = null;
+        boolean jit = false;
+        boolean jitLog = false;
+        int jitThreshold = Jit.DEFAULT_THRESHOLD;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = parseEngine(arg.substring("--engine=".length()));
+            } else if (arg.equals("--ic-stats")) {
+                icStats = true;
+            } else if (arg.equals("--parallel-lex")) {
+                parallelLex = true;
+            } else if (arg.equals("--specialize")) {
+                interpreter.specialize = true;
+            } else if (arg.equals("--jit")) {
+                jit = true;
+            } else if (arg.startsWith("--jit-threshold=")) {
+                jitThreshold = parseThreshold(arg.substring("--jit-threshold=".length()));
+            } else if (arg.equals("--jit-log")) {
+                jitLog = true;
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                usage();
+            }
+        }
+        if (jit) interpreter.jit = new Jit(jitThreshold, jitLog);
+        if (script != null) {
+            runFile(script);
         }else{
             runPrompt();
         }
     }
+
+    private static Engine parseEngine(String name) {
+        for (Engine e : Engine.values()) {
+            if (e.name().equalsIgnoreCase(name)) return e;
+        }
+        usage();
+        return null;
+    }
+
+    private static int parseThreshold(String value) {
+        try {
+            int threshold = Integer.parseInt(value);
+            if (threshold > 0) return threshold;
+        } catch (NumberFormatException e) {
+            // Fall through to the usage message.
+        }
+        usage();
+        return 0;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|vm|closure] [--ic-stats] [--specialize]\n" +
+                "            [--jit] [--jit-threshold=N] [--jit-log] [--parallel-lex] [script]");
+        System.exit(64);
+    }
     public static void runFile(String path) throws IOException{
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        run(readSource(path));
+        if (icStats) InlineCache.printStats();
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
@@ -44,18 +108,47 @@ public class Lox {
             run(line);
             hadError = false;
         }
+        if (icStats) InlineCache.printStats();
     }
 
-    public static void run(String source){
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+    // Maps the script and lets the Scanner read the mapped bytes; see
+    // MappedSource. The mapping outlives the channel.
+    static CharSequence readSource(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedSource(bytes);
+        }
+    }
+
+    public static void run(CharSequence source){
+        List<Stmt> stmts = parse(source);
+        if (hadError)return;
+        if (engine == Engine.VM) {
+            if (vm == null) vm = new VM();
+            ObjFunction script = new Compiler(vm).compile(stmts);
+            if (hadError)return;
+            vm.interpret(script);
+            return;
+        }
+        if (engine == Engine.CLOSURE) {
+            if (closureCompiler == null) closureCompiler = new ClosureCompiler(interpreter);
+            closureCompiler.interpret(stmts);
+            return;
+        }
+        interpreter.interpret(stmts);
+    }
+
+    // Scans, parses and resolves a script. The result is only usable when
+    // hadError is still false afterwards.
+    static List<Stmt> parse(CharSequence source) {
+        TokenBuffer tokens = parallelLex ? Scanner.scanTokensInParallel(source)
+                : new Scanner(source).scanTokens();
         Parser parser = new Parser(tokens);
         List<Stmt> stmts = parser.parse();
-        if (hadError)return;
-        Resolver resolver = new Resolver(interpreter);
+        if (hadError)return stmts;
+        Resolver resolver = new Resolver();
         resolver.resolve(stmts);
-        if (hadError)return;
-        interpreter.interpret(stmts);
+        return stmts;
     }
 
     static void error(int line, String message){
@@ -76,7 +169,7 @@ public class Lox {
     }
 
     public static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        System.err.println(error.getMessage() + "\n[line " + error.line + "]");
         hadRuntimeError = true;
     }
 }
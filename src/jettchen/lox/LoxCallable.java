@@ -1,7 +1,27 @@
 package jettchen.lox;
-import java.util.List;
 
 interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // Call sites with up to three arguments use these instead, so a callable
+    // that overrides them never needs its arguments packed into an array.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[]{a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[]{a, b, c});
+    }
 }
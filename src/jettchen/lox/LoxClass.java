@@ -1,17 +1,29 @@
 package jettchen.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
     private final Map<String, LoxFunction> methods;
     final LoxClass superclass;
+    private final LoxFunction initializer;
+    private final int arity;
+    // The empty layout every new instance starts from, and the most fields
+    // any instance has grown to, used to presize the next ones.
+    final Shape shape = new Shape(this);
+    int fieldCount = 0;
 
     LoxClass(String name, LoxClass superclass,Map<String, LoxFunction> methods){
         this.superclass = superclass;
         this.name = name;
-        this.methods=methods;
+        // Copy the inherited methods in under our own so a lookup is one
+        // probe however deep the hierarchy is.
+        this.methods = new HashMap<>();
+        if (superclass != null) this.methods.putAll(superclass.methods);
+        this.methods.putAll(methods);
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
     }
 
     @Override
@@ -21,28 +33,55 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer==null)return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer!=null){
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, arguments);
         }
         return instance;
     }
 
-    public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)){
-            return methods.get(name);
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer!=null){
+            initializer.invoke0(interpreter, instance);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer!=null){
+            initializer.invoke1(interpreter, instance, a);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer!=null){
+            initializer.invoke2(interpreter, instance, a, b);
         }
-        if (superclass != null) {
-            return superclass.findMethod(name);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer!=null){
+            initializer.invoke3(interpreter, instance, a, b, c);
         }
-        return null;
+        return instance;
+    }
+
+    public LoxFunction findMethod(String name) {
+        return methods.get(name);
     }
 }
@@ -1,16 +1,33 @@
 package jettchen.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // The values it captured; see Environment.upvalues.
+    private final Object[] upvalues;
+
+    private final boolean isInitializer;
+    // Methods take their receiver in slot 0 of the frame. A method read off
+    // an instance as a value remembers it here; calls like o.m() skip that
+    // and hand the receiver straight to invoke().
+    private final boolean isMethod;
+    final LoxInstance receiver;
+
+    LoxFunction(Stmt.Function declaration, Object[] upvalues){
+        this(declaration, upvalues, false, false, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isInitializer,
+                LoxInstance receiver){
+        this(declaration, upvalues, true, isInitializer, receiver);
+    }
 
-    private boolean isInitializer;
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer){
-        this.closure = closure;
+    private LoxFunction(Stmt.Function declaration, Object[] upvalues, boolean isMethod,
+                        boolean isInitializer, LoxInstance receiver){
+        this.upvalues = upvalues;
         this.declaration = declaration;
+        this.isMethod = isMethod;
         this.isInitializer=isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -19,19 +36,151 @@ class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment env = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            env.define(declaration.params.get(i).lexeme, arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    // The invoke forms take the receiver explicitly, for calling a method
+    // that was never bound.
+    Object invoke(Interpreter interpreter, LoxInstance self, Object[] arguments) {
+        JitCode code = compiled(interpreter);
+        if (code != null) {
+            return finish(interpreter, code.invokeAny(interpreter, upvalues, self, arguments));
+        }
+        Environment env = frame(interpreter, self);
+        for (Object argument : arguments) {
+            env.define(argument);
+        }
+        return finish(interpreter, run(interpreter, env, self));
+    }
+
+    Object invoke0(Interpreter interpreter, LoxInstance self) {
+        JitCode code = compiled(interpreter);
+        if (code != null) return finish(interpreter, code.invoke0(interpreter, upvalues, self));
+        return finish(interpreter, run(interpreter, frame(interpreter, self), self));
+    }
+
+    Object invoke1(Interpreter interpreter, LoxInstance self, Object a) {
+        JitCode code = compiled(interpreter);
+        if (code != null) return finish(interpreter, code.invoke1(interpreter, upvalues, self, a));
+        Environment env = frame(interpreter, self);
+        env.define(a);
+        return finish(interpreter, run(interpreter, env, self));
+    }
+
+    Object invoke2(Interpreter interpreter, LoxInstance self, Object a, Object b) {
+        JitCode code = compiled(interpreter);
+        if (code != null) {
+            return finish(interpreter, code.invoke2(interpreter, upvalues, self, a, b));
+        }
+        Environment env = frame(interpreter, self);
+        env.define(a);
+        env.define(b);
+        return finish(interpreter, run(interpreter, env, self));
+    }
+
+    Object invoke3(Interpreter interpreter, LoxInstance self, Object a, Object b, Object c) {
+        JitCode code = compiled(interpreter);
+        if (code != null) {
+            return finish(interpreter, code.invoke3(interpreter, upvalues, self, a, b, c));
+        }
+        Environment env = frame(interpreter, self);
+        env.define(a);
+        env.define(b);
+        env.define(c);
+        return finish(interpreter, run(interpreter, env, self));
+    }
+
+    // The function's compiled body once the JIT has produced one. Until
+    // then every call counts towards compiling it.
+    private JitCode compiled(Interpreter interpreter) {
+        if (declaration.code == null && interpreter.jit != null) {
+            interpreter.jit.countCall(declaration, isMethod, isInitializer);
         }
+        return declaration.code;
+    }
+
+    // Whether this is a method looked up without binding, which the caller
+    // has to invoke with an explicit receiver.
+    boolean isUnboundMethod() {
+        return isMethod && receiver == null;
+    }
+
+    // Taken from the interpreter's FrameStack; run() gives it back.
+    private Environment frame(Interpreter interpreter, LoxInstance self) {
+        Environment env = interpreter.frames.push(null, upvalues, declaration.frameSize);
+        if (isMethod) env.define(self);
+        return env;
+    }
+
+    // Runs the body in a frame from frame(). The result is TAIL_CALL when
+    // the body ended in a call in tail position, which finish() makes.
+    private Object run(Interpreter interpreter, Environment env, LoxInstance self) {
+        if (declaration.boxedParams.length > 0) env.box(declaration.boxedParams);
+        Object value = null;
+        Stmt.Function caller = interpreter.running;
+        interpreter.running = declaration;
         try {
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return r){
-            if (isInitializer)return closure.getAt(0,"this");
-            return r.value;
+            if (declaration.compiledBody != null) {
+                Object result = declaration.compiledBody.exec(env);
+                if (result != ClosureCompiler.NORMAL) value = result;
+            } else if (interpreter.executeBlock(declaration.body, env) == Interpreter.Completion.RETURN) {
+                value = interpreter.returnValue;
+                interpreter.returnValue = null;
+            }
+        } finally {
+            interpreter.frames.pop();
+            interpreter.running = caller;
+        }
+        if (isInitializer)return self;
+        return value;
+    }
+
+    // Makes the pending tail calls one after another, each once the
+    // function that returned it has finished, so tail recursion takes no
+    // Java stack whichever engine runs the functions involved.
+    private static Object finish(Interpreter interpreter, Object value) {
+        while (value == Interpreter.TAIL_CALL) {
+            LoxFunction function = interpreter.tailFunction;
+            LoxInstance self = interpreter.tailReceiver;
+            Object[] arguments = interpreter.tailArguments;
+            interpreter.tailFunction = null;
+            interpreter.tailReceiver = null;
+            interpreter.tailArguments = null;
+            value = function.enter(interpreter, self, arguments);
+        }
+        return value;
+    }
+
+    // A call whose result may itself be TAIL_CALL.
+    private Object enter(Interpreter interpreter, LoxInstance self, Object[] arguments) {
+        JitCode code = compiled(interpreter);
+        if (code != null) return code.invokeAny(interpreter, upvalues, self, arguments);
+        Environment env = frame(interpreter, self);
+        for (Object argument : arguments) {
+            env.define(argument);
         }
-        if (isInitializer)return closure.getAt(0, "this");
-        return null;
+        return run(interpreter, env, self);
     }
 
     @Override
@@ -40,8 +189,6 @@ class LoxFunction implements LoxCallable {
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, upvalues, true, isInitializer, instance);
     }
 }
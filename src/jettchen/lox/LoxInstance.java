@@ -1,31 +1,54 @@
 package jettchen.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_VALUES = new Object[0];
+
+    // Read directly by the property inline caches.
+    Shape shape;
+    Object[] values;
 
     public LoxInstance(LoxClass klass) {
-        this.klass = klass;
+        this.shape = klass.shape;
+        // Size the values for the most fields any instance of the class has
+        // had so far, so initializers rarely need to grow the array.
+        this.values = klass.fieldCount == 0 ? NO_VALUES : new Object[klass.fieldCount];
     }
 
     Object get(Token name){
-        if(fields.containsKey(name.lexeme)){
-            return fields.get(name.lexeme);
+        int slot = shape.slotOf(name.lexeme);
+        if(slot >= 0){
+            return values[slot];
         }
-        LoxFunction method = klass.findMethod(name.lexeme);
+        LoxFunction method = shape.klass.findMethod(name.lexeme);
         if(method!=null)return method.bind(this);
         throw new RuntimeError(name, "Undefined property '"+name.lexeme+"'.");
     }
 
     @Override
     public String toString() {
-        return klass.name+" instance";
+        return shape.klass.name+" instance";
     }
 
     public void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slotOf(name.lexeme);
+        if (slot < 0) {
+            put(shape.with(name.lexeme), shape.size(), value);
+        } else {
+            values[slot] = value;
+        }
+    }
+
+    // Stores into a slot of the given shape, which is either the current one
+    // or the one adding a field at that slot moves this instance to.
+    void put(Shape shape, int slot, Object value) {
+        if (slot >= values.length) {
+            values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+            LoxClass klass = shape.klass;
+            if (klass.fieldCount < shape.size()) klass.fieldCount = shape.size();
+        }
+        this.shape = shape;
+        values[slot] = value;
     }
 }
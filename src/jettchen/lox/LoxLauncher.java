@@ -0,0 +1,27 @@
+package jettchen.lox;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The main class of jars built by jloxc. It runs the script image stored
+// next to it on the bytecode VM, without scanning, parsing or resolving.
+public class LoxLauncher {
+    static final String IMAGE = "script.loxc";
+
+    public static void main(String[] args) throws IOException {
+        VM vm = new VM();
+        ObjFunction script;
+        try (InputStream resource = LoxLauncher.class.getResourceAsStream(IMAGE)) {
+            if (resource == null) {
+                System.err.println("No compiled script in this jar.");
+                System.exit(66);
+                return;
+            }
+            script = ScriptImage.read(new DataInputStream(new BufferedInputStream(resource)), vm);
+        }
+        vm.interpret(script);
+        if (Lox.hadRuntimeError) System.exit(70);
+    }
+}
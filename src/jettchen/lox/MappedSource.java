@@ -0,0 +1,49 @@
+package jettchen.lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// A script file mapped into memory, which the Scanner reads in place. Each
+// char is one byte of the file: everything outside string literals and
+// comments is ASCII in Lox, and the bytes of a multi-byte UTF-8 character
+// are never a quote or a newline, so the Scanner finds the same tokens as
+// in the decoded text. Only the text cut out of it, lexemes and string
+// literals, is decoded as UTF-8, so the file itself is never copied onto
+// the heap.
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    MappedSource(ByteBuffer bytes) {
+        this(bytes, 0, bytes.limit());
+    }
+
+    private MappedSource(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[length];
+        bytes.get(offset, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
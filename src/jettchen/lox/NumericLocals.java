@@ -0,0 +1,261 @@
+package jettchen.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Finds the locals of a function that can only ever hold numbers, so the
+// JIT can keep them in primitive double locals instead of boxing a new
+// Double on every assignment. That covers the usual loop counter,
+// `for (var i = 0; i < n; i = i + 1)`, and accumulators like
+// `sum = sum + i * 2`.
+//
+// A local qualifies when its initializer and every value assigned to it
+// produce a number or fail. -, *, / and unary minus always do; + does
+// when either side is a number. The analysis starts from every local with
+// a numeric initializer and drops those with a non-numeric assignment
+// until nothing changes.
+class NumericLocals implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // The declaration each local Variable and Assign refers to. Parameters
+    // and "this" are never numeric, so they map to nothing.
+    private final Map<Expr, Stmt.Var> declarations = new IdentityHashMap<>();
+    private final Map<Stmt.Var, List<Expr>> assignments = new IdentityHashMap<>();
+    private final Set<Stmt.Var> numeric = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final List<List<Stmt.Var>> scopes = new ArrayList<>();
+
+    NumericLocals(Stmt.Function function, boolean isMethod) {
+        List<Stmt.Var> parameters = new ArrayList<>();
+        if (isMethod) parameters.add(null);
+        for (int i = 0; i < function.params.size(); i++) parameters.add(null);
+        scopes.add(parameters);
+        for (Stmt stmt : function.body) {
+            stmt.accept(this);
+        }
+
+        for (Stmt.Var var : assignments.keySet()) {
+            if (var.initializer != null) numeric.add(var);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Stmt.Var, List<Expr>> entry : assignments.entrySet()) {
+                Stmt.Var var = entry.getKey();
+                if (!isNumeric(var)) continue;
+                if (!isNumber(var.initializer) || !allNumbers(entry.getValue())) {
+                    numeric.remove(var);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    boolean isNumeric(Stmt.Var var) {
+        return numeric.contains(var);
+    }
+
+    // The numeric local a Variable or Assign refers to, or null.
+    Stmt.Var numericLocal(Expr expr) {
+        Stmt.Var var = declarations.get(expr);
+        return var != null && isNumeric(var) ? var : null;
+    }
+
+    // Whether the expression evaluates to a number whenever it doesn't
+    // throw.
+    boolean isNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            if (binary.operator.type == TokenType.PLUS) {
+                return isNumber(binary.left) || isNumber(binary.right);
+            }
+            return Interpreter.isArithmetic(binary.operator.type);
+        }
+        if (expr instanceof Expr.Assign) return isNumber(((Expr.Assign) expr).value);
+        if (expr instanceof Expr.Variable) return numericLocal(expr) != null;
+        return false;
+    }
+
+    private boolean allNumbers(List<Expr> values) {
+        for (Expr value : values) {
+            if (!isNumber(value)) return false;
+        }
+        return true;
+    }
+
+    private void reference(Expr expr, int depth, int slot) {
+        int scope = scopes.size() - 1 - depth;
+        if (depth < 0 || scope < 0) return;
+        Stmt.Var var = scopes.get(scope).get(slot);
+        if (var != null) declarations.put(expr, var);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        reference(expr, expr.depth, expr.slot);
+        Stmt.Var var = declarations.get(expr);
+        if (var != null) assignments.get(var).add(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        expr.callee.accept(this);
+        for (Expr argument : expr.arguments) {
+            argument.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        expr.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        reference(expr, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitCommaExpr(Expr.Comma expr) {
+        expr.left.accept(this);
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        expr.condition.accept(this);
+        expr.then.accept(this);
+        expr.otherwise.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block without declarations has no scope of its own.
+        if (stmt.frameSize > 0) scopes.add(new ArrayList<>());
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        if (stmt.frameSize > 0) scopes.remove(scopes.size() - 1);
+        return null;
+    }
+
+    // Functions and classes declared inside stop the JIT anyway, so their
+    // bodies aren't analyzed; their names still take a slot.
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        declare(null);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        declare(null);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        stmt.condition.accept(this);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) stmt.value.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        declare(stmt);
+        assignments.put(stmt, new ArrayList<>());
+        return null;
+    }
+
+    private void declare(Stmt.Var var) {
+        scopes.get(scopes.size() - 1).add(var);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        stmt.condition.accept(this);
+        stmt.body.accept(this);
+        return null;
+    }
+}
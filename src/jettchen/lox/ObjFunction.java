@@ -0,0 +1,19 @@
+package jettchen.lox;
+
+class ObjFunction {
+    final String name;
+    int arity = 0;
+    int upvalueCount = 0;
+    int maxStack = 1;
+    final Chunk chunk = new Chunk();
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return String.format("<fn %s>", name);
+    }
+}
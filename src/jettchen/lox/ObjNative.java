@@ -0,0 +1,20 @@
+package jettchen.lox;
+
+class ObjNative {
+    interface Body {
+        Object call(Object[] args);
+    }
+
+    final int arity;
+    final Body body;
+
+    ObjNative(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
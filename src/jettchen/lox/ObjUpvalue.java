@@ -0,0 +1,13 @@
+package jettchen.lox;
+
+class ObjUpvalue {
+    // Stack slot while the variable is still live on the VM stack, -1 once closed.
+    int slot;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -8,10 +8,10 @@ import static jettchen.lox.TokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens){
+    Parser(TokenBuffer tokens){
         this.tokens=tokens;
     }
 
@@ -45,22 +45,22 @@ public class Parser {
         Token name = consume(IDENTIFIER, "Expect class name");
         Expr.Variable superclass = null;
         if (match(LESS)){
-            consume(IDENTIFIER, "Expect superclass name.");
+            expect(IDENTIFIER, "Expect superclass name.");
             superclass = new Expr.Variable(previous());
         }
 
-        consume(LEFT_BRACE, "Expect '{' before class body");
+        expect(LEFT_BRACE, "Expect '{' before class body");
         List<Stmt.Function> methods = new ArrayList<>();
         while (!check(RIGHT_BRACE) && !isAtEnd()){
             methods.add(function("method"));
         }
-        consume(RIGHT_BRACE, "Expect '}' before class body");
+        expect(RIGHT_BRACE, "Expect '}' before class body");
         return new Stmt.Class(name, superclass, methods);
     }
 
     private Stmt.Function function(String kind){
         Token name = consume(IDENTIFIER, "Expect "+kind+" name.");
-        consume(LEFT_PAREN, String.format("Expect '(' after %s name",kind));
+        expect(LEFT_PAREN, String.format("Expect '(' after %s name",kind));
         List<Token> parameters = new ArrayList<>();
         if (!check(RIGHT_PAREN)){
             do {
@@ -71,8 +71,8 @@ public class Parser {
                 parameters.add(consume(IDENTIFIER, "Expect parameter name."));
             }while (match(COMMA));
         }
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
-        consume(LEFT_BRACE, String.format("'Expect '{' before %s body",kind));
+        expect(RIGHT_PAREN, "Expect ')' after parameters.");
+        expect(LEFT_BRACE, String.format("'Expect '{' before %s body",kind));
         List<Stmt> body = block();
         return new Stmt.Function(name, parameters, body);
     }
@@ -83,7 +83,7 @@ public class Parser {
         if (match(EQUAL)){
             initializer = expression();
         }
-        consume(SEMICOLON, "Expect ';' after variable declaration");
+        expect(SEMICOLON, "Expect ';' after variable declaration");
         return new Stmt.Var(name, initializer);
     }
 
@@ -103,12 +103,12 @@ public class Parser {
         if (!check(SEMICOLON)){
             value = expression();
         }
-        consume(SEMICOLON, "Expect ';' after return value");
+        expect(SEMICOLON, "Expect ';' after return value");
         return new Stmt.Return(keyword, value);
     }
 
     private Stmt forStatement(){
-        consume(LEFT_PAREN, "expect '(' after 'for'.");
+        expect(LEFT_PAREN, "expect '(' after 'for'.");
         Stmt initializer;
         if (match(SEMICOLON)){
             initializer = null;
@@ -122,13 +122,13 @@ public class Parser {
         if(!check(SEMICOLON)){
             condition=expression();
         }
-        consume(SEMICOLON, "Expect ';' after loop condition");
+        expect(SEMICOLON, "Expect ';' after loop condition");
 
         Expr increment = null;
         if (!check(RIGHT_PAREN)){
             increment=expression();
         }
-        consume(RIGHT_PAREN, "Expect ')' after for clauses");
+        expect(RIGHT_PAREN, "Expect ')' after for clauses");
 
         Stmt body = statement();
         if (increment!=null){
@@ -148,17 +148,17 @@ public class Parser {
     }
 
     private Stmt whileStatement() {
-        consume(LEFT_PAREN, "expect '(' after 'while'.");
+        expect(LEFT_PAREN, "expect '(' after 'while'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "expect ')' after while condition");
+        expect(RIGHT_PAREN, "expect ')' after while condition");
         Stmt body = statement();
         return new Stmt.While(condition,body);
     }
 
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "expect '(' after 'if'.");
+        expect(LEFT_PAREN, "expect '(' after 'if'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "expect ')' after if condition");
+        expect(RIGHT_PAREN, "expect ')' after if condition");
         Stmt then_stmt = statement();
         Stmt else_stmt = null;
         if (match(ELSE)){
@@ -169,13 +169,13 @@ public class Parser {
 
     private Stmt printStatement(){
         Expr value = expression();
-        consume(SEMICOLON, "Expect ';' after value.");
+        expect(SEMICOLON, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
     private Stmt expressionStatement(){
         Expr value = expression();
-        consume(SEMICOLON, "Expect ';' after value.");
+        expect(SEMICOLON, "Expect ';' after value.");
         return new Stmt.Expression(value);
     }
 
@@ -184,7 +184,7 @@ public class Parser {
         while(!check(RIGHT_BRACE) && !isAtEnd()){
             stmts.add(declaration());
         }
-        consume(RIGHT_BRACE, "Expect '}' after block.");
+        expect(RIGHT_BRACE, "Expect '}' after block.");
         return stmts;
     }
 
@@ -224,10 +224,16 @@ public class Parser {
         return expr;
     }
 
+    private boolean match(TokenType type){
+        if (!check(type)) return false;
+        current++;
+        return true;
+    }
+
     private boolean match(TokenType... types){
         for (TokenType type : types) {
             if (check(type)) {
-                advance();
+                current++;
                 return true;
             }
         }
@@ -236,24 +242,25 @@ public class Parser {
 
     private boolean check(TokenType type){
         if(isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance(){
+    private void advance(){
         if(!isAtEnd())current++;
-        return previous();
     }
 
     private boolean isAtEnd(){
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
+    // Tokens are only built for the AST and for error messages; the
+    // lookahead above reads types straight out of the buffer.
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current-1);
+        return tokens.token(current-1);
     }
 
     private Expr comma(){
@@ -362,11 +369,11 @@ public class Parser {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(NIL)) return new Expr.Literal(null);
         if (match(NUMBER,STRING)){
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current-1));
         }
         if (match(SUPER)) {
             Token keyword = previous();
-            consume(DOT, "Expect ',' after 'super'.");
+            expect(DOT, "Expect ',' after 'super'.");
             Token method = consume(IDENTIFIER,
                     "Expect superclass method name.");
             return new Expr.Super(keyword, method);
@@ -377,7 +384,7 @@ public class Parser {
         }
         if (match(LEFT_PAREN)) {
             Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression");
+            expect(RIGHT_PAREN, "Expect ')' after expression");
             return new Expr.Grouping(expr);
         }
 
@@ -385,8 +392,14 @@ public class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
-        throw error(peek(), message);
+        expect(type, message);
+        return previous();
+    }
+
+    // consume() for a token the AST doesn't keep.
+    private void expect(TokenType type, String message) {
+        if (!check(type)) throw error(peek(), message);
+        advance();
     }
 
     private ParseError error(Token token, String message){
@@ -396,8 +409,8 @@ public class Parser {
 
     private void synchronize(){
         advance();
-        if(previous().type == SEMICOLON) return;
-        switch (peek().type){
+        if(tokens.type(current-1) == SEMICOLON) return;
+        switch (tokens.type(current)){
             case CLASS:
             case FUN:
             case VAR:
@@ -1,19 +1,60 @@
 package jettchen.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Map<String, Variable>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    public Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    private static class Variable {
+        final int slot;
+        boolean defined = false;
+        // A variable that a closure captures and that is ever assigned
+        // lives in a Cell, which its frame and the closures share. The
+        // rest are copied into closures by value. Function and class
+        // names count as assigned, since their own bodies capture them
+        // before the value is stored.
+        boolean captured = false;
+        boolean assigned = false;
+        Stmt declaration;
+        final List<Expr> uses = new ArrayList<>();
+
+        Variable(int slot) {
+            this.slot = slot;
+        }
+
+        boolean isBoxed() {
+            return captured && assigned;
+        }
     }
 
+    // The function whose body is being resolved. Variables declared in its
+    // own scopes are locals; anything from an enclosing function becomes
+    // one of its upvalues, which the closure captures when it is created.
+    // Top-level code is the outermost one.
+    private static class FunctionScope {
+        final FunctionScope enclosing;
+        // Index in scopes of the function's own scope.
+        final int base;
+        final Map<Variable, Integer> upvalues = new HashMap<>();
+        // Where each upvalue comes from, relative to the scope the function
+        // is declared in: a depth and slot there, or depth -1 and an upvalue
+        // of the enclosing function.
+        final List<Integer> captureDepths = new ArrayList<>();
+        final List<Integer> captureSlots = new ArrayList<>();
+
+        FunctionScope(FunctionScope enclosing, int base) {
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
+    private FunctionScope function = new FunctionScope(null, 0);
+
     private enum FunctionType{
         NONE,
         FUNCTION,
@@ -32,8 +73,16 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing, like the one the for loop wraps
+        // around its body and increment, gets no scope of its own and
+        // keeps a frameSize of 0. It runs in the enclosing frame.
+        if (!declares(stmt.statements)) {
+            resolve(stmt.statements);
+            return null;
+        }
         beginScope();
         resolve(stmt.statements);
+        stmt.frameSize = scopes.peek().size();
         endScope();
         return null;
     }
@@ -42,8 +91,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
-        declare(stmt.name);
+        Variable name = declare(stmt.name);
         define(stmt.name);
+        if (name != null) {
+            name.declaration = stmt;
+            name.assigned = true;
+        }
         if (stmt.superclass!=null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)){
             Lox.error(stmt.superclass.name, "A class can't inherit itself.");
         }
@@ -53,43 +106,75 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
         }
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            declareSynthetic("super");
         }
-        beginScope();
-        scopes.peek().put("this", true);
         for(Stmt.Function method: stmt.methods){
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init"))
                 declaration = FunctionType.INITIALIZER;
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass!=null)endScope();
         currentClass = enclosingClass;
         return null;
     }
 
+    private static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+                    statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Variable>());
     }
 
     private void endScope() {
-        scopes.pop();
+        for (Variable variable : scopes.pop().values()) {
+            if (!variable.isBoxed()) continue;
+            for (Expr use : variable.uses) {
+                if (use instanceof Expr.Variable) {
+                    ((Expr.Variable) use).boxed = true;
+                } else {
+                    ((Expr.Assign) use).boxed = true;
+                }
+            }
+            if (variable.declaration instanceof Stmt.Var) {
+                ((Stmt.Var) variable.declaration).boxed = true;
+            } else if (variable.declaration instanceof Stmt.Function) {
+                ((Stmt.Function) variable.declaration).boxed = true;
+            } else if (variable.declaration instanceof Stmt.Class) {
+                ((Stmt.Class) variable.declaration).boxed = true;
+            }
+        }
     }
 
-    private void declare(Token name){
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
+    private Variable declare(Token name){
+        if (scopes.isEmpty()) return null;
+        Map<String, Variable> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)){
             Lox.error(name,
                     "Already a variable with this name in this scope.");
+            return null;
         }
-        scope.put(name.lexeme, false);
+        Variable variable = new Variable(scope.size());
+        scope.put(name.lexeme, variable);
+        return variable;
     }
 
     private void define(Token name){
         if (scopes.isEmpty())return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
+    }
+
+    private void declareSynthetic(String name) {
+        Variable variable = new Variable(scopes.peek().size());
+        variable.defined = true;
+        scopes.peek().put(name, variable);
     }
 
     void resolve(List<Stmt> stmts){
@@ -102,7 +187,17 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        int scope = scopeOf(expr.name.lexeme);
+        if (scope < 0) return null;
+        Variable variable = scopes.get(scope).get(expr.name.lexeme);
+        variable.assigned = true;
+        variable.uses.add(expr);
+        if (scope >= function.base) {
+            expr.depth = scopes.size() - 1 - scope;
+            expr.slot = variable.slot;
+        } else {
+            expr.upvalue = upvalue(function, scope, variable);
+        }
         return null;
     }
 
@@ -110,6 +205,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     public Void visitBinaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
+        // Operands that are calls keep the boxed path, so deep recursion
+        // needs no more Java stack than it used to.
+        boolean unboxable = Interpreter.isUnboxable(expr.left) && Interpreter.isUnboxable(expr.right);
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                expr.unboxed = unboxable;
+                break;
+            case PLUS:
+                // Adding anything to a number gives a number or an error.
+                expr.unboxed = unboxable &&
+                        (Interpreter.isNumeric(expr.left) || Interpreter.isNumeric(expr.right));
+                break;
+        }
+        // Under --specialize, unboxed nodes start out specialized.
+        if (expr.unboxed) {
+            expr.state = Interpreter.isArithmetic(expr.operator.type)
+                    ? BinaryNode.NUMBERS : BinaryNode.COMPARISON;
+        }
         return null;
     }
 
@@ -163,7 +282,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
             Lox.error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        int scope = scopeOf("super");
+        if (scope >= 0) expr.upvalue = upvalue(function, scope, scopes.get(scope).get("super"));
+        expr.receiver = new Expr.This(expr.keyword);
+        resolve(expr.receiver);
         return null;
     }
 
@@ -174,7 +296,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
                     "Can't use 'this' outside of a class");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        int scope = scopeOf("this");
+        if (scope < 0) return null;
+        Variable variable = scopes.get(scope).get("this");
+        if (scope >= function.base) {
+            expr.depth = scopes.size() - 1 - scope;
+            expr.slot = variable.slot;
+        } else {
+            expr.upvalue = upvalue(function, scope, variable);
+        }
         return null;
     }
     @Override
@@ -186,30 +316,66 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE){
+            scopes.peek().containsKey(expr.name.lexeme) &&
+            !scopes.peek().get(expr.name.lexeme).defined){
             Lox.error(expr.name,
                     "Can't read local variable in its own initializer");
         }
-        resolveLocal(expr, expr.name);
+        int scope = scopeOf(expr.name.lexeme);
+        if (scope < 0) return null;
+        Variable variable = scopes.get(scope).get(expr.name.lexeme);
+        variable.uses.add(expr);
+        if (scope >= function.base) {
+            expr.depth = scopes.size() - 1 - scope;
+            expr.slot = variable.slot;
+        } else {
+            expr.upvalue = upvalue(function, scope, variable);
+        }
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Index of the innermost scope declaring the name, or -1 when it isn't
+    // a local and has to be a global.
+    private int scopeOf(String name) {
         for (int i = scopes.size()-1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)){
-                interpreter.resolve(expr, scopes.size()-1-i);
-                return;
+            if (scopes.get(i).containsKey(name)){
+                return i;
             }
         }
+        return -1;
+    }
+
+    // The function's upvalue for a variable declared in scopes[scope],
+    // below the function's own scopes. Functions in between capture it
+    // too, so each closure only ever copies from the one around it.
+    private int upvalue(FunctionScope function, int scope, Variable variable) {
+        Integer index = function.upvalues.get(variable);
+        if (index != null) return index;
+        variable.captured = true;
+        if (scope >= function.enclosing.base) {
+            function.captureDepths.add(function.base - 1 - scope);
+            function.captureSlots.add(variable.slot);
+        } else {
+            function.captureDepths.add(-1);
+            function.captureSlots.add(upvalue(function.enclosing, scope, variable));
+        }
+        index = function.captureDepths.size() - 1;
+        function.upvalues.put(variable, index);
+        return index;
     }
 
     @Override
     public Void visitCommaExpr(Expr.Comma expr) {
+        resolve(expr.left);
+        resolve(expr.right);
         return null;
     }
 
     @Override
     public Void visitTernaryExpr(Expr.Ternary expr) {
+        resolve(expr.condition);
+        resolve(expr.then);
+        resolve(expr.otherwise);
         return null;
     }
 
@@ -230,8 +396,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Variable name = declare(stmt.name);
         define(stmt.name);
+        if (name != null) {
+            name.declaration = stmt;
+            name.assigned = true;
+        }
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
     }
@@ -239,16 +409,39 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
+        FunctionScope enclosingScope = this.function;
+        this.function = new FunctionScope(enclosingScope, scopes.size());
         beginScope();
+        // A method's receiver is slot 0 of its own frame, so calls can pass
+        // it in directly instead of binding the method first.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            declareSynthetic("this");
+        }
         for (Token param: function.params){
             declare(param);
             define(param);
         }
         resolve(function.body);
+        function.frameSize = scopes.peek().size();
+        List<Integer> boxedParams = new ArrayList<>();
+        for (Token param : function.params) {
+            Variable variable = scopes.peek().get(param.lexeme);
+            if (variable.isBoxed()) boxedParams.add(variable.slot);
+        }
+        function.boxedParams = toArray(boxedParams);
+        function.captureDepths = toArray(this.function.captureDepths);
+        function.captureSlots = toArray(this.function.captureSlots);
         endScope();
+        this.function = enclosingScope;
         currentFunction=enclosingFunction;
     }
 
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) array[i] = values.get(i);
+        return array;
+    }
+
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
         resolve(stmt.condition);
@@ -274,13 +467,15 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>{
                         "Can't return value in initializer");
             }
             resolve(stmt.value);
+            stmt.tailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
+        if (variable != null) variable.declaration = stmt;
         if (stmt.initializer != null){
             resolve(stmt.initializer);
         }
@@ -1,50 +1,56 @@
 package jettchen.lox;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final CharSequence source;
+    private final TokenBuffer tokens;
 
     private int start = 0;
     private int current= 0;
     private int line= 1;
+    // Where scanning stops: the end of the source, or of a chunk when
+    // scanning in parallel. Chunks don't report errors, they only note
+    // that there was one.
+    private final int end;
+    private final boolean isChunk;
+    private boolean failed = false;
 
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", TokenType.AND);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("for", TokenType.FOR);
-        keywords.put("fun", TokenType.FUN);
-        keywords.put("if", TokenType.IF);
-        keywords.put("nil", TokenType.NIL);
-        keywords.put("or", TokenType.OR);
-        keywords.put("print", TokenType.PRINT);
-        keywords.put("return", TokenType.RETURN);
-        keywords.put("super", TokenType.SUPER);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("while", TokenType.WHILE);
-    }
-
-    Scanner(String source){
+    // Scripts are only split into chunks of at least this many chars.
+    private static final int MIN_CHUNK = 256 * 1024;
+
+    Scanner(CharSequence source){
+        this.source = source;
+        this.tokens = new TokenBuffer(source, source.length() / 4);
+        this.end = source.length();
+        this.isChunk = false;
+    }
+
+    private Scanner(CharSequence source, int start, int end, int line){
         this.source = source;
+        this.tokens = new TokenBuffer(source, (end - start) / 4);
+        this.start = start;
+        this.current = start;
+        this.end = end;
+        this.line = line;
+        this.isChunk = true;
     }
 
     private boolean isAtEnd(){
-        return current>=source.length();
+        return current>=end;
     }
 
-    private void addToken(TokenType t){
-        addToken(t, null);
+    private void error(String message){
+        if (isChunk) {
+            failed = true;
+        } else {
+            Lox.error(line, message);
+        }
     }
 
-    private void addToken(TokenType t, Object literal){
-        String text = source.substring(start, current);
-        tokens.add(new Token(t,text,literal,line));
+    private void addToken(TokenType t){
+        tokens.add(t, start, current - start, line);
     }
 
     private char advance(){
@@ -71,25 +77,64 @@ public class Scanner {
         }
 
         if (isAtEnd()){
-            Lox.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
 
         advance();
-
-        String value = source.substring(start+1, current-1);
-        addToken(TokenType.STRING, value);
+        addToken(TokenType.STRING);
     }
 
 
 
     private void identifier(){
         while(isAlphaNumeric(peek())) advance();
+        addToken(identifierType());
+    }
+
+    // Keywords are told apart by their first one or two letters, like a
+    // trie, and the rest is compared in place, so no String is cut out of
+    // the source to check a name.
+    private TokenType identifierType(){
+        switch (source.charAt(start)){
+            case 'a': return keyword(1, "nd", TokenType.AND);
+            case 'c': return keyword(1, "lass", TokenType.CLASS);
+            case 'e': return keyword(1, "lse", TokenType.ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return keyword(2, "lse", TokenType.FALSE);
+                        case 'o': return keyword(2, "r", TokenType.FOR);
+                        case 'u': return keyword(2, "n", TokenType.FUN);
+                    }
+                }
+                break;
+            case 'i': return keyword(1, "f", TokenType.IF);
+            case 'n': return keyword(1, "il", TokenType.NIL);
+            case 'o': return keyword(1, "r", TokenType.OR);
+            case 'p': return keyword(1, "rint", TokenType.PRINT);
+            case 'r': return keyword(1, "eturn", TokenType.RETURN);
+            case 's': return keyword(1, "uper", TokenType.SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return keyword(2, "is", TokenType.THIS);
+                        case 'r': return keyword(2, "ue", TokenType.TRUE);
+                    }
+                }
+                break;
+            case 'v': return keyword(1, "ar", TokenType.VAR);
+            case 'w': return keyword(1, "hile", TokenType.WHILE);
+        }
+        return TokenType.IDENTIFIER;
+    }
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type==null)type= TokenType.IDENTIFIER;
-        addToken(type);
+    private TokenType keyword(int offset, String rest, TokenType type){
+        if (current - start != offset + rest.length()) return TokenType.IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source.charAt(start + offset + i) != rest.charAt(i)) return TokenType.IDENTIFIER;
+        }
+        return type;
     }
     private void scanToken(){
         char c = advance();
@@ -124,11 +169,6 @@ public class Scanner {
             case '\n':
                 line++;
                 break;
-            case 'o':
-                if (match('r')){
-                    addToken(TokenType.OR);
-                }
-                break;
             case '"':string();break;
             default:
                 if(isDigit(c)){
@@ -136,7 +176,7 @@ public class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else{
-                    Lox.error(line, "Unexpected character:"+c);
+                    error("Unexpected character:"+c);
                 }
                 break;
         }
@@ -155,11 +195,11 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(TokenType.NUMBER);
     }
 
     private char peekNext(){
-        if (current+1>=source.length()) return '\0';
+        if (current+1>=end) return '\0';
         return source.charAt(current+1);
     }
 
@@ -171,12 +211,63 @@ public class Scanner {
         return isAlpha(c) || isDigit(c);
     }
 
-    List<Token> scanTokens(){
+    TokenBuffer scanTokens(){
         while(!isAtEnd()){
             start = current;
             scanToken();
         }
-        tokens.add(new Token(TokenType.EOF, "", null, line));
+        tokens.add(TokenType.EOF, current, 0, line);
+        return tokens;
+    }
+
+    // Scans a large script on the fork-join pool. It is cut at newlines
+    // outside string literals, which no token spans, and each chunk is
+    // scanned from the line it starts on, so joining the chunks' tokens in
+    // order gives exactly what scanTokens() would. If any chunk has an
+    // error the script is scanned again sequentially to report it.
+    static TokenBuffer scanTokensInParallel(CharSequence source){
+        int length = source.length();
+        int count = Math.min(length / MIN_CHUNK, ForkJoinPool.getCommonPoolParallelism() * 4);
+        if (count < 2) return new Scanner(source).scanTokens();
+
+        List<Scanner> chunks = new ArrayList<>();
+        int target = length / count;
+        int from = 0;
+        int fromLine = 1;
+        int line = 1;
+        boolean inString = false;
+        for (int i = 0; i < length; i++) {
+            char c = source.charAt(i);
+            if (c == '\n') line++;
+            if (inString) {
+                if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+                while (i + 1 < length && source.charAt(i + 1) != '\n') i++;
+            } else if (c == '\n' && i + 1 - from >= target && chunks.size() < count - 1) {
+                chunks.add(new Scanner(source, from, i + 1, fromLine));
+                from = i + 1;
+                fromLine = line;
+            }
+        }
+        chunks.add(new Scanner(source, from, length, fromLine));
+
+        List<ForkJoinTask<TokenBuffer>> tasks = new ArrayList<>();
+        for (Scanner chunk : chunks) {
+            tasks.add(ForkJoinPool.commonPool().submit(chunk::scanTokens));
+        }
+        int size = 0;
+        for (ForkJoinTask<TokenBuffer> task : tasks) {
+            size += task.join().size();
+        }
+        TokenBuffer tokens = new TokenBuffer(source, size);
+        for (int i = 0; i < chunks.size(); i++) {
+            if (chunks.get(i).failed) return new Scanner(source).scanTokens();
+            TokenBuffer chunk = tasks.get(i).join();
+            // Only the last chunk's EOF is the script's.
+            tokens.addAll(chunk, i == chunks.size() - 1 ? chunk.size() : chunk.size() - 1);
+        }
         return tokens;
     }
 
@@ -0,0 +1,127 @@
+package jettchen.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// The on-disk form of a compiled script: the global names the compiler
+// baked into its instructions, in slot order, followed by the script
+// function and, through its constants, every function nested in it.
+// jloxc writes it and the launcher reads it back into a fresh VM.
+class ScriptImage {
+    private static final int MAGIC = 0x4c4f5843; // "LOXC"
+    private static final int VERSION = 2;
+
+    private static final int NIL = 0;
+    private static final int BOOLEAN = 1;
+    private static final int NUMBER = 2;
+    private static final int STRING = 3;
+    private static final int FUNCTION = 4;
+    private static final int NAME = 5;
+
+    private ScriptImage() {
+    }
+
+    static void write(DataOutputStream out, VM vm, ObjFunction script) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        String[] globals = vm.globalNamesBySlot();
+        out.writeInt(globals.length);
+        for (String name : globals) writeString(out, name);
+        writeFunction(out, script);
+    }
+
+    static ObjFunction read(DataInputStream in, VM vm) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("not a compiled Lox script");
+        }
+        int globals = in.readInt();
+        for (int slot = 0; slot < globals; slot++) {
+            // A fresh VM hands out slots in the same order the compiling
+            // one did, starting with the natives.
+            if (vm.globalSlot(readName(in)) != slot) {
+                throw new IOException("global slots do not match this runtime");
+            }
+        }
+        return readFunction(in);
+    }
+
+    private static void writeFunction(DataOutputStream out, ObjFunction function)
+            throws IOException {
+        out.writeBoolean(function.name != null);
+        if (function.name != null) writeString(out, function.name);
+        out.writeInt(function.arity);
+        out.writeInt(function.upvalueCount);
+        out.writeInt(function.maxStack);
+        Chunk chunk = function.chunk;
+        out.writeInt(chunk.count);
+        out.write(chunk.code, 0, chunk.count);
+        for (int i = 0; i < chunk.count; i++) out.writeInt(chunk.lines[i]);
+        out.writeInt(chunk.constants.size());
+        for (int i = 0; i < chunk.constants.size(); i++) {
+            Object constant = chunk.constants.get(i);
+            if (constant == null) {
+                out.writeByte(NIL);
+            } else if (constant instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) constant);
+            } else if (constant instanceof Double) {
+                out.writeByte(NUMBER);
+                out.writeDouble((Double) constant);
+            } else if (constant instanceof String) {
+                out.writeByte(chunk.names.get(i) ? NAME : STRING);
+                writeString(out, (String) constant);
+            } else if (constant instanceof ObjFunction) {
+                out.writeByte(FUNCTION);
+                writeFunction(out, (ObjFunction) constant);
+            } else {
+                throw new IOException("cannot store constant " + constant);
+            }
+        }
+    }
+
+    private static ObjFunction readFunction(DataInputStream in) throws IOException {
+        ObjFunction function = new ObjFunction(in.readBoolean() ? readName(in) : null);
+        function.arity = in.readInt();
+        function.upvalueCount = in.readInt();
+        function.maxStack = in.readInt();
+        Chunk chunk = function.chunk;
+        byte[] code = new byte[in.readInt()];
+        in.readFully(code);
+        for (byte b : code) chunk.write(b, in.readInt());
+        int constants = in.readInt();
+        for (int i = 0; i < constants; i++) {
+            switch (in.readByte()) {
+                case NIL: chunk.addConstant(null); break;
+                case BOOLEAN: chunk.addConstant(in.readBoolean()); break;
+                case NUMBER: chunk.addConstant(in.readDouble()); break;
+                case STRING: chunk.addConstant(readString(in)); break;
+                case NAME: chunk.names.set(chunk.addConstant(readName(in))); break;
+                case FUNCTION: chunk.addConstant(readFunction(in)); break;
+                default: throw new IOException("corrupt constant table");
+            }
+        }
+        chunk.seal();
+        return function;
+    }
+
+    // Lox strings can be longer than writeUTF allows.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Names come back as symbols, as the scanner would have made them.
+    // String literals don't, or every one would stay in the table for good.
+    private static String readName(DataInputStream in) throws IOException {
+        return Symbols.intern(readString(in));
+    }
+}
@@ -0,0 +1,45 @@
+package jettchen.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The field layout shared by every instance of a class that had its fields
+// added in the same order. Adding a field moves an instance along a
+// transition to the next shape, which is created once and then reused.
+class Shape {
+    final LoxClass klass;
+    private final Map<String, Integer> slots;
+    private Map<String, Shape> transitions;
+
+    Shape(LoxClass klass) {
+        this(klass, new HashMap<>());
+    }
+
+    private Shape(LoxClass klass, Map<String, Integer> slots) {
+        this.klass = klass;
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // The index of the field in an instance's values, or -1 if this shape
+    // has no such field.
+    int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape with(String name) {
+        if (transitions == null) transitions = new HashMap<>();
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(klass, nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -24,6 +24,7 @@ this.statements = statements;
  return visitor.visitBlockStmt(this);
 } 
  final List<Stmt> statements;
+ int frameSize;
  }
  static class Class extends Stmt {
  Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods){ 
@@ -39,6 +40,7 @@ this.methods = methods;
  final Token name;
  final Expr.Variable superclass;
  final List<Stmt.Function> methods;
+ boolean boxed;
  }
  static class Expression extends Stmt {
  Expression(Expr expression){ 
@@ -65,6 +67,15 @@ this.body = body;
  final Token name;
  final List<Token> params;
  final List<Stmt> body;
+ int frameSize;
+ boolean boxed;
+ int[] boxedParams;
+ int[] captureDepths;
+ int[] captureSlots;
+ int hotness;
+ boolean jitFailed;
+ JitCode code;
+ ClosureCompiler.Exec compiledBody;
  }
  static class If extends Stmt {
  If(Expr condition, Stmt thenBranch, Stmt elseBranch){ 
@@ -104,6 +115,7 @@ this.value = value;
 } 
  final Token keyword;
  final Expr value;
+ boolean tailCall;
  }
  static class Var extends Stmt {
  Var(Token name, Expr initializer){ 
@@ -117,6 +129,7 @@ this.initializer = initializer;
 } 
  final Token name;
  final Expr initializer;
+ boolean boxed;
  }
  static class While extends Stmt {
  While(Expr condition, Stmt body){ 
@@ -0,0 +1,98 @@
+package jettchen.lox;
+
+import java.lang.ref.WeakReference;
+
+// The symbol table: one String per distinct name. Identifiers are
+// interned here as they are taken out of the source, so a name used a
+// thousand times is one object. Strings cache their hash, and the maps
+// behind globals, classes, shapes and the VM compare keys by identity
+// before calling equals(), so looking a name up costs an identity check.
+// The names the runtime spells out itself are entered first, which makes
+// a script's "init" the very literal LoxClass asks for.
+//
+// The table holds its names weakly, so one that no code or global refers
+// to any more, like a name typed at the REPL long ago, is collected
+// instead of kept for the life of the session. If it comes back it is
+// interned anew; no live String can tell. Cleared entries are reused by
+// later names and dropped when the table is rebuilt.
+final class Symbols {
+    private static final class Entry extends WeakReference<String> {
+        Entry(String symbol) {
+            super(symbol);
+        }
+    }
+
+    private static Entry[] table = new Entry[1024];
+    // Entries in use, cleared ones included.
+    private static int count = 0;
+
+    static {
+        for (String name : new String[] {"init", "this", "super", "clock"}) {
+            intern(name);
+        }
+    }
+
+    private Symbols() {}
+
+    static String intern(String name) {
+        return intern(name, 0, name.length());
+    }
+
+    // Interns the chars from start to end without copying them unless the
+    // name is new.
+    static synchronized String intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        int mask = table.length - 1;
+        int index = hash & mask;
+        int cleared = -1;
+        for (Entry entry; (entry = table[index]) != null; index = (index + 1) & mask) {
+            String symbol = entry.get();
+            if (symbol == null) {
+                if (cleared < 0) cleared = index;
+            } else if (symbol.hashCode() == hash && matches(symbol, source, start, end)) {
+                return symbol;
+            }
+        }
+        String symbol = source.subSequence(start, end).toString();
+        if (cleared >= 0) {
+            table[cleared] = new Entry(symbol);
+            return symbol;
+        }
+        table[index] = new Entry(symbol);
+        if (++count * 2 > table.length) rebuild();
+        return symbol;
+    }
+
+    private static boolean matches(String symbol, CharSequence source, int start, int end) {
+        if (symbol.length() != end - start) return false;
+        for (int i = 0; i < symbol.length(); i++) {
+            if (symbol.charAt(i) != source.charAt(start + i)) return false;
+        }
+        return true;
+    }
+
+    // Rehashes the live names, into a table twice the size unless most
+    // of the full one's entries had been cleared.
+    private static void rebuild() {
+        Entry[] old = table;
+        int live = 0;
+        for (Entry entry : old) {
+            if (entry != null && entry.get() != null) live++;
+        }
+        table = new Entry[live * 4 > old.length ? old.length * 2 : old.length];
+        count = 0;
+        int mask = table.length - 1;
+        for (Entry entry : old) {
+            if (entry == null) continue;
+            String symbol = entry.get();
+            if (symbol == null) continue;
+            int index = symbol.hashCode() & mask;
+            while (table[index] != null) index = (index + 1) & mask;
+            table[index] = entry;
+            count++;
+        }
+    }
+}
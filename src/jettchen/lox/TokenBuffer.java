@@ -0,0 +1,109 @@
+package jettchen.lox;
+
+import java.util.Arrays;
+
+// The scanner's output: each token's type, position and line in parallel
+// arrays rather than a Token object with its own lexeme String. The
+// Parser reads types straight out of the buffer and only builds Tokens
+// for what the AST keeps, so lexemes are cut out of the source lazily.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+    // Everything but identifiers and literals always has the same text,
+    // so each of those lexemes is only cut out once.
+    private final String[] fixedLexemes = new String[TYPES.length];
+
+    TokenBuffer(CharSequence source, int capacity) {
+        this.source = source;
+        capacity = Math.max(16, capacity);
+        types = new int[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (size == types.length) grow();
+        types[size] = type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    // Appends the first count tokens of another buffer over the same
+    // source.
+    void addAll(TokenBuffer other, int count) {
+        while (size + count > types.length) grow();
+        System.arraycopy(other.types, 0, types, size, count);
+        System.arraycopy(other.starts, 0, starts, size, count);
+        System.arraycopy(other.lengths, 0, lengths, size, count);
+        System.arraycopy(other.lines, 0, lines, size, count);
+        size += count;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        int type = types[index];
+        if (TYPES[type] == TokenType.IDENTIFIER) {
+            return Symbols.intern(source, starts[index], starts[index] + lengths[index]);
+        }
+        if (isVariable(TYPES[type])) return text(index);
+        String lexeme = fixedLexemes[type];
+        if (lexeme == null) {
+            lexeme = text(index);
+            fixedLexemes[type] = lexeme;
+        }
+        return lexeme;
+    }
+
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return Double.parseDouble(text(index));
+            case STRING:
+                int start = starts[index];
+                return source.subSequence(start + 1, start + lengths[index] - 1).toString();
+            default:
+                return null;
+        }
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index));
+    }
+
+    private String text(int index) {
+        return source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+    }
+
+    private static boolean isVariable(TokenType type) {
+        return type == TokenType.IDENTIFIER || type == TokenType.STRING ||
+                type == TokenType.NUMBER;
+    }
+}
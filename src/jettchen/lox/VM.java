@@ -0,0 +1,599 @@
+package jettchen.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Stack based virtual machine executing the bytecode produced by Compiler.
+//
+// Numbers on the operand stack are kept unboxed: the Object slot holds the
+// NUMBER marker and the value itself sits at the same index of `numbers`.
+// They are only boxed into Doubles when they leave the stack, i.e. when
+// stored into a global, a field, a closed upvalue or handed to a native.
+class VM {
+    private static final int FRAMES_MAX = 1 << 16;
+    private static final Object UNDEFINED = new Object();
+    private static final Object NUMBER = new Object();
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        int base;
+    }
+
+    private Object[] stack = new Object[1024];
+    private double[] numbers = new double[1024];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private ObjUpvalue openUpvalues;
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globalValues = new Object[64];
+
+    VM() {
+        Arrays.fill(globalValues, UNDEFINED);
+        defineNative("clock", 0,
+                args -> (double) System.currentTimeMillis() / 1000.0);
+    }
+
+    private void defineNative(String name, int arity, ObjNative.Body body) {
+        globalValues[globalSlot(name)] = new ObjNative(arity, body);
+    }
+
+    // Globals are addressed by slot so that the compiler can bake the index
+    // into the instruction. Slots outlive a single compilation, which keeps
+    // REPL lines referring to the same variables.
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+        int index = globalSlots.size();
+        if (index == globalValues.length) {
+            int length = globalValues.length * 2;
+            globalNames = Arrays.copyOf(globalNames, length);
+            globalValues = Arrays.copyOf(globalValues, length);
+            Arrays.fill(globalValues, index, length, UNDEFINED);
+        }
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    // Every global name the VM has handed a slot to, indexed by slot.
+    String[] globalNamesBySlot() {
+        return Arrays.copyOf(globalNames, globalSlots.size());
+    }
+
+    void interpret(ObjFunction script) {
+        ObjClosure closure = new ObjClosure(script);
+        stack[sp++] = closure;
+        try {
+            call(closure, 0);
+            run();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private RuntimeError error(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        int line = frame.closure.function.chunk.lines[frame.ip - 1];
+        return new RuntimeError(line, message);
+    }
+
+    // Reads a stack slot as a regular Lox value, boxing unboxed numbers.
+    private Object valueAt(int slot) {
+        Object value = stack[slot];
+        return value == NUMBER ? (Object) numbers[slot] : value;
+    }
+
+    private void store(int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = NUMBER;
+            numbers[slot] = (Double) value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    // The hot loop keeps the stack, stack pointer and current frame's state
+    // in locals and only writes them back around calls and errors.
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constantTable;
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int base = frame.base;
+        int ip = frame.ip;
+        int sp = this.sp;
+
+        for (;;) {
+            switch (code[ip++]) {
+                case OpCode.CONSTANT: {
+                    Object value = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (value instanceof Double) {
+                        stack[sp] = NUMBER;
+                        numbers[sp++] = (Double) value;
+                    } else {
+                        stack[sp++] = value;
+                    }
+                    break;
+                }
+                case OpCode.NIL: stack[sp++] = null; break;
+                case OpCode.TRUE: stack[sp++] = Boolean.TRUE; break;
+                case OpCode.FALSE: stack[sp++] = Boolean.FALSE; break;
+                case OpCode.POP: stack[--sp] = null; break;
+                case OpCode.GET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[sp] = stack[slot];
+                    numbers[sp++] = numbers[slot];
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    int slot = base + (code[ip++] & 0xff);
+                    stack[slot] = stack[sp - 1];
+                    numbers[slot] = numbers[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    Object value = globalValues[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable: '" + globalNames[slot] + "'.");
+                    }
+                    store(sp++, value);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    globalValues[slot] = valueAt(--sp);
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    ip += 2;
+                    if (globalValues[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw error("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globalValues[slot] = valueAt(sp - 1);
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        stack[sp] = stack[upvalue.slot];
+                        numbers[sp++] = numbers[upvalue.slot];
+                    } else {
+                        store(sp++, upvalue.closed);
+                    }
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.slot >= 0) {
+                        stack[upvalue.slot] = stack[sp - 1];
+                        numbers[upvalue.slot] = numbers[sp - 1];
+                    } else {
+                        upvalue.closed = valueAt(sp - 1);
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    if (!(stack[sp - 1] instanceof ObjInstance)) {
+                        throw error("Only instances have properties");
+                    }
+                    ObjInstance instance = (ObjInstance) stack[sp - 1];
+                    Object value = instance.fields.getOrDefault(name, UNDEFINED);
+                    if (value == UNDEFINED) {
+                        value = bindMethod(instance.klass, instance, name);
+                    }
+                    store(sp - 1, value);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof ObjInstance)) {
+                        frame.ip = ip;
+                        throw error("Only instance have fields");
+                    }
+                    ((ObjInstance) stack[sp - 2]).fields.put(name, valueAt(sp - 1));
+                    sp--;
+                    stack[sp - 1] = stack[sp];
+                    numbers[sp - 1] = numbers[sp];
+                    stack[sp] = null;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    frame.ip = ip;
+                    ObjClass superclass = (ObjClass) stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = bindMethod(superclass, stack[sp - 1], name);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    boolean equal;
+                    sp--;
+                    if (stack[sp] == NUMBER && stack[sp - 1] == NUMBER) {
+                        // Same answer as Double.equals, without boxing.
+                        equal = Double.doubleToLongBits(numbers[sp - 1])
+                                == Double.doubleToLongBits(numbers[sp]);
+                    } else {
+                        equal = Values.isEqual(valueAt(sp - 1), valueAt(sp));
+                    }
+                    stack[sp] = null;
+                    stack[sp - 1] = equal;
+                    break;
+                }
+                case OpCode.GREATER:
+                case OpCode.GREATER_EQUAL:
+                case OpCode.LESS:
+                case OpCode.LESS_EQUAL: {
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    double b = numbers[--sp];
+                    double a = numbers[sp - 1];
+                    stack[sp] = null;
+                    stack[sp - 1] = compare(code[ip - 1], a, b);
+                    break;
+                }
+                case OpCode.SUBTRACT:
+                case OpCode.MULTIPLY:
+                case OpCode.DIVIDE: {
+                    if (stack[sp - 1] != NUMBER || stack[sp - 2] != NUMBER) {
+                        frame.ip = ip;
+                        throw error("Operands must be numbers.");
+                    }
+                    double b = numbers[--sp];
+                    double a = numbers[sp - 1];
+                    stack[sp] = null;
+                    numbers[sp - 1] = arithmetic(code[ip - 1], a, b);
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = stack[sp - 1];
+                    Object a = stack[sp - 2];
+                    if (a == NUMBER && b == NUMBER) {
+                        numbers[sp - 2] += numbers[sp - 1];
+                    } else if (a instanceof String && b instanceof String) {
+                        stack[sp - 2] = (String) a + (String) b;
+                    } else {
+                        frame.ip = ip;
+                        throw error("Operands must be two numbers or two strings.");
+                    }
+                    stack[--sp] = null;
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !Values.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEGATE:
+                    if (stack[sp - 1] != NUMBER) {
+                        frame.ip = ip;
+                        throw error("Operand must be a number.");
+                    }
+                    numbers[sp - 1] = -numbers[sp - 1];
+                    break;
+                case OpCode.PRINT:
+                    System.out.println(Values.stringify(valueAt(--sp)));
+                    stack[sp] = null;
+                    break;
+                case OpCode.JUMP:
+                    ip += (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) + 2;
+                    break;
+                case OpCode.JUMP_IF_FALSE:
+                    if (!Values.isTruthy(stack[sp - 1])) {
+                        ip += ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                    }
+                    ip += 2;
+                    break;
+                case OpCode.LOOP:
+                    ip -= (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)) - 2;
+                    break;
+                case OpCode.CALL:
+                case OpCode.TAIL_CALL: {
+                    byte op = code[ip - 1];
+                    int argCount = code[ip++] & 0xff;
+                    Object callee = stack[sp - 1 - argCount];
+                    frame.ip = ip;
+                    this.sp = sp;
+                    int depth = frameCount;
+                    if (callee instanceof ObjClosure) {
+                        call((ObjClosure) callee, argCount);
+                    } else {
+                        callValue(callee, argCount);
+                    }
+                    if (op == OpCode.TAIL_CALL && frameCount > depth) replaceCaller();
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constantTable;
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    base = frame.base;
+                    ip = frame.ip;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.INVOKE:
+                case OpCode.SUPER_INVOKE:
+                case OpCode.TAIL_INVOKE:
+                case OpCode.TAIL_SUPER_INVOKE: {
+                    byte op = code[ip - 1];
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    int argCount = code[ip + 2] & 0xff;
+                    ip += 3;
+                    frame.ip = ip;
+                    this.sp = sp;
+                    int depth = frameCount;
+                    if (op == OpCode.INVOKE || op == OpCode.TAIL_INVOKE) {
+                        invoke(name, argCount);
+                    } else {
+                        ObjClass superclass = (ObjClass) stack[--this.sp];
+                        stack[this.sp] = null;
+                        invokeFromClass(superclass, name, argCount);
+                    }
+                    if (op >= OpCode.TAIL_CALL && frameCount > depth) replaceCaller();
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constantTable;
+                    stack = this.stack;
+                    numbers = this.numbers;
+                    base = frame.base;
+                    ip = frame.ip;
+                    sp = this.sp;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure closure = new ObjClosure(function);
+                    stack[sp++] = closure;
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] == 1;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal
+                                ? captureUpvalue(base + index)
+                                : frame.closure.upvalues[index];
+                    }
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE:
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                case OpCode.RETURN: {
+                    Object result = stack[--sp];
+                    double number = numbers[sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    for (int i = base; i <= sp; i++) stack[i] = null;
+                    sp = base;
+                    if (frameCount == 0) {
+                        this.sp = sp;
+                        return;
+                    }
+                    stack[sp] = result;
+                    numbers[sp++] = number;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constantTable;
+                    base = frame.base;
+                    ip = frame.ip;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    stack[sp++] = new ObjClass(name);
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    if (!(stack[sp - 2] instanceof ObjClass)) {
+                        frame.ip = ip;
+                        throw error("Superclass must be a class");
+                    }
+                    ObjClass superclass = (ObjClass) stack[sp - 2];
+                    ObjClass subclass = (ObjClass) stack[--sp];
+                    stack[sp] = null;
+                    subclass.methods.putAll(superclass.methods);
+                    subclass.initializer = superclass.initializer;
+                    break;
+                }
+                case OpCode.METHOD: {
+                    String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                    ip += 2;
+                    ObjClosure method = (ObjClosure) stack[--sp];
+                    stack[sp] = null;
+                    ObjClass klass = (ObjClass) stack[sp - 1];
+                    klass.methods.put(name, method);
+                    if (name.equals("init")) klass.initializer = method;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[ip - 1]);
+            }
+        }
+    }
+
+    private static Boolean compare(byte op, double a, double b) {
+        switch (op) {
+            case OpCode.GREATER: return a > b;
+            case OpCode.GREATER_EQUAL: return a >= b;
+            case OpCode.LESS: return a < b;
+            default: return a <= b;
+        }
+    }
+
+    private static double arithmetic(byte op, double a, double b) {
+        switch (op) {
+            case OpCode.SUBTRACT: return a - b;
+            case OpCode.MULTIPLY: return a * b;
+            default: return a / b;
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount);
+        } else if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[sp - argCount - 1] = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw arityError(0, argCount);
+            }
+        } else if (callee instanceof ObjNative) {
+            ObjNative fn = (ObjNative) callee;
+            if (argCount != fn.arity) {
+                throw arityError(fn.arity, argCount);
+            }
+            Object[] args = new Object[argCount];
+            for (int i = 0; i < argCount; i++) {
+                args[i] = valueAt(sp - argCount + i);
+            }
+            Object result = fn.body.call(args);
+            Arrays.fill(stack, sp - argCount, sp, null);
+            sp -= argCount;
+            store(sp - 1, result);
+        } else {
+            throw error("Can only call functions and classes");
+        }
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw arityError(closure.function.arity, argCount);
+        }
+        if (frameCount == frames.length) growFrames();
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = frames[frameCount] = new CallFrame();
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+        if (frame.base + closure.function.maxStack > stack.length) {
+            growStack(frame.base + closure.function.maxStack);
+        }
+    }
+
+    // Hands the caller's frame and stack window to the frame a tail call
+    // just pushed, so tail recursion runs in constant space. The RETURN
+    // after the call in the caller is then never reached.
+    private void replaceCaller() {
+        CallFrame callee = frames[frameCount - 1];
+        CallFrame caller = frames[frameCount - 2];
+        closeUpvalues(caller.base);
+        int count = sp - callee.base;
+        System.arraycopy(stack, callee.base, stack, caller.base, count);
+        System.arraycopy(numbers, callee.base, numbers, caller.base, count);
+        int top = caller.base + count;
+        Arrays.fill(stack, top, sp, null);
+        sp = top;
+        caller.closure = callee.closure;
+        caller.ip = 0;
+        frameCount--;
+    }
+
+    private RuntimeError arityError(int arity, int argCount) {
+        return error(String.format("Expected %d arguments but got %d.", arity, argCount));
+    }
+
+    private void growFrames() {
+        if (frameCount == FRAMES_MAX) throw error("Stack overflow.");
+        frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+
+    private void growStack(int needed) {
+        int length = Math.max(needed, stack.length * 2);
+        stack = Arrays.copyOf(stack, length);
+        numbers = Arrays.copyOf(numbers, length);
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof ObjInstance)) {
+            throw error("Only instances have properties");
+        }
+        ObjInstance instance = (ObjInstance) receiver;
+        Object field = instance.fields.getOrDefault(name, UNDEFINED);
+        if (field != UNDEFINED) {
+            store(sp - argCount - 1, field);
+            callValue(field, argCount);
+            return;
+        }
+        invokeFromClass(instance.klass, name, argCount);
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private ObjBoundMethod bindMethod(ObjClass klass, Object receiver, String name) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        return new ObjBoundMethod(receiver, method);
+    }
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        ObjUpvalue prev = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if (prev == null) {
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = valueAt(upvalue.slot);
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+}
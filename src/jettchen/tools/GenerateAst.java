@@ -13,31 +13,36 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign : Token name, Expr value",
-                "Binary : Expr left, Token operator, Expr right",
+                "Assign : Token name, Expr value" +
+                        " | int depth = -1, int slot, int upvalue = -1, boolean boxed, Cell global",
+                "Binary : Expr left, Token operator, Expr right" +
+                        " | int state, boolean unboxed",
                 "Call : Expr callee, Token paren, List<Expr> arguments",
-                "Get : Expr object, Token name",
+                "Get : Expr object, Token name | InlineCache cache",
                 "Grouping : Expr expression",
                 "Literal : Object value",
                 "Logical : Expr left, Token operator, Expr right",
-                "Set : Expr object, Token name, Expr value",
-                "Super : Token keyword, Token method",
-                "This : Token keyword",
+                "Set : Expr object, Token name, Expr value | InlineCache cache",
+                "Super : Token keyword, Token method | int upvalue = -1, This receiver",
+                "This : Token keyword | int depth = -1, int slot, int upvalue = -1",
                 "Unary : Token operator, Expr right",
-                "Variable : Token name",
+                "Variable : Token name" +
+                        " | int depth = -1, int slot, int upvalue = -1, boolean boxed, Cell global",
                 "Comma : Expr left, Expr right",
                 "Ternary : Expr condition, Expr then, Expr otherwise"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block : List<Stmt> statements",
-                "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Block : List<Stmt> statements | int frameSize",
+                "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods | boolean boxed",
                 "Expression : Expr expression",
                 "Function : Token name, List<Token> params," +
-                        " List<Stmt> body",
+                        " List<Stmt> body | int frameSize, boolean boxed, int[] boxedParams," +
+                        " int[] captureDepths, int[] captureSlots, int hotness, boolean jitFailed," +
+                        " JitCode code, ClosureCompiler.Exec compiledBody",
                 "If: Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print : Expr expression",
-                "Return : Token keyword, Expr value",
-                "Var : Token name, Expr initializer",
+                "Return : Token keyword, Expr value | boolean tailCall",
+                "Var : Token name, Expr initializer | boolean boxed",
                 "While : Expr condition, Stmt body"
         ));
     }
@@ -55,8 +60,13 @@ public class GenerateAst {
         defineVisitor(printer, baseName, types);
         for(String def:types){
             String className  = def.split(":")[0].trim();
-            String fields = def.split(":")[1].trim();
-            defineType(printer, baseName, className, fields);
+            // Fields after '|' are filled in by later passes (the Resolver,
+            // the interpreter's caches) rather than the parser, so they stay mutable and out of the
+            // constructor.
+            String[] parts = def.split(":")[1].split("\\|");
+            String fields = parts[0].trim();
+            String resolved = parts.length > 1 ? parts[1].trim() : null;
+            defineType(printer, baseName, className, fields, resolved);
         }
         printer.println();
         printer.println(" abstract <R> R accept(Visitor<R> visitor);");
@@ -64,7 +74,8 @@ public class GenerateAst {
         printer.close();
     }
 
-    private static void defineType(PrintWriter printer, String baseName, String className, String fieldList) {
+    private static void defineType(PrintWriter printer, String baseName, String className,
+                                   String fieldList, String resolvedList) {
         printer.println(" static class "+className+" extends "+baseName+" {");
         printer.println(" "+className+"("+fieldList+"){ ");;
         String[] fields = fieldList.split(", ");
@@ -82,6 +93,11 @@ public class GenerateAst {
         for(String field:fields){
             printer.println(" final "+field+";");
         }
+        if (resolvedList != null) {
+            for (String field : resolvedList.split(", ")) {
+                printer.println(" " + field + ";");
+            }
+        }
 
         printer.println(" }");
     }